@@ -6,14 +6,16 @@ import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.TreeMap;
 import java.io.File;
-import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletionException;
 
 import lib.Configurador;
 import lib.Connection.FileOperationService;
 import lib.Factory.FileTransferFactory;
+import lib.Handlers.RemoteManifest;
 import lib.Jefazo;
+import lib.Enum.TransferPriority;
 import lib.Utils.Logger;
 import lib.Utils.ScannerKey;
 
@@ -28,16 +30,21 @@ public class App {
         Jefazo jefazo = new Jefazo();
         jefazo.start();
 
+        // El servidor se prepara en segundo plano; el menu se muestra ya y
+        // solo espera si se elige una opcion que lo necesita
+        FileTransferFactory.initFileSystemsAsync().whenComplete((ready, error) -> {
+            if (error != null) {
+                Logger.error("Error al inicializar sistemas de archivos: " + error.getMessage());
+                System.exit(1);
+            } else if (ready) {
+                jefazo.reconcile();
+            }
+        });
+
         FileOperationService fileService = new FileOperationService();
 
-        try {
-            FileTransferFactory.initFileSystems();
-        } catch (IOException e) {
-            Logger.error("Error al inicializar sistemas de archivos: " + e.getMessage());
-            System.exit(1);
-        }
-        
-        
+        // Todo lo que se hace desde el menu pasa por delante de la sincronizacion
+        TransferPriority.set(TransferPriority.INTERACTIVE);
 
         boolean running = true;
 
@@ -53,6 +60,10 @@ public class App {
             try {
                 int option = ScannerKey.scannerInt("Introduce la opción");
 
+                if (option >= 1 && option <= 4 && !_awaitRemote()) {
+                    continue;
+                }
+
                 switch (option) {
                     case 1:
 
@@ -115,7 +126,7 @@ public class App {
                         LocalDateTime selectedDateTime = datesList.get(versionChoice - 1);
                         File selectedFile = sortedVersions.get(selectedDateTime);
 
-                        String selectedFileName = selectedFile.getName();
+                        String selectedFileName = selectedFile.getPath().replace(File.separatorChar, '/');
                         String remotePath = "history/" + selectedFileName;
 
                         System.out.println("Path remoto: " + remotePath);
@@ -158,10 +169,29 @@ public class App {
         }
 
         ScannerKey.close();
+        RemoteManifest.flushAll();
         Logger.shutdown();
         System.exit(0);
     }
 
+    /**
+     * Espera a que el servidor este listo, avisando si aun no lo esta
+     */
+    static boolean _awaitRemote() {
+        if (!FileTransferFactory.ready().isDone()) {
+            System.out.println("Conectando con el servidor...");
+        }
+        try {
+            if (FileTransferFactory.ready().join()) {
+                return true;
+            }
+        } catch (CompletionException e) {
+            // Ya se ha informado al completarse
+        }
+        System.out.println("El servidor no está disponible");
+        return false;
+    }
+
     static void _handleListView(FileOperationService fileService) {
         System.out.println("Archivos remotos:");
         List<String> files = fileService.listRemoteFiles("");
@@ -0,0 +1,44 @@
+package lib.Compression;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lib.Interfaces.CompressionCodec;
+
+/**
+ * Registro de codecs disponibles, por nombre (configuracion) y por id
+ * (cabecera de los archivos descargados). Se pueden registrar codecs propios
+ * antes de crear los manejadores.
+ */
+public class CompressionCodecs {
+
+    private static final Map<String, CompressionCodec> BY_NAME = new ConcurrentHashMap<>();
+    private static final Map<Byte, CompressionCodec> BY_ID = new ConcurrentHashMap<>();
+
+    static {
+        register(new DeflateCodec(6));
+        register(new GzipCodec());
+    }
+
+    private CompressionCodecs() {
+    }
+
+    public static void register(CompressionCodec codec) {
+        BY_NAME.put(codec.getName(), codec);
+        BY_ID.put(codec.getId(), codec);
+    }
+
+    /**
+     * @return el codec, o null si no hay ninguno con ese nombre
+     */
+    public static CompressionCodec byName(String name) {
+        return BY_NAME.get(name);
+    }
+
+    /**
+     * @return el codec, o null si no hay ninguno con ese id
+     */
+    public static CompressionCodec byId(byte id) {
+        return BY_ID.get(id);
+    }
+}
@@ -0,0 +1,69 @@
+package lib.Compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import lib.Interfaces.CompressionCodec;
+
+/**
+ * Deflate sin envoltorio zlib, incluido en el JDK
+ */
+public class DeflateCodec implements CompressionCodec {
+
+    public static final byte ID = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int level;
+
+    /**
+     * @param level nivel de compresion de 1 (rapido) a 9 (maximo)
+     */
+    public DeflateCodec(int level) {
+        this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        Deflater deflater = new Deflater(level, true);
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,38 @@
+package lib.Compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import lib.Interfaces.CompressionCodec;
+
+/**
+ * Gzip del JDK: algo mas de cabecera que deflate pero con CRC propio
+ */
+public class GzipCodec implements CompressionCodec {
+
+    public static final byte ID = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, BUFFER_SIZE);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+}
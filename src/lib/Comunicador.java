@@ -1,6 +1,5 @@
 package lib;
 
-import java.io.File;
 import java.nio.file.Path;
 
 import lib.Enum.LocalEvent;
@@ -9,8 +8,8 @@ import lib.Interfaces.FileEventListener;
 
 /**
  * Comunicador: This class is in charge of communicating the events that are
- * going to be handled. Has a Jefazo Reference to add the events to the
- * ConcurrentHashMap.
+ * going to be handled. Has a Jefazo Reference to add the events to its
+ * pending event queue.
  */
 
 public class Comunicador implements FileEventListener {
@@ -23,8 +22,12 @@ public class Comunicador implements FileEventListener {
     
     @Override
     public void onFileEvent(LocalEvent eventType, Path filePath) {
-        File file = filePath.toFile();
-        jefazo.addTodoEvent(eventType, file);
+        jefazo.addTodoEvent(eventType, filePath);
+    }
+
+    @Override
+    public void onWatchStopped() {
+        jefazo.stopDispatch();
     }
     
 }
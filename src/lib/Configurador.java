@@ -23,6 +23,38 @@ public class Configurador {
     private static int ftpPort;
     private static String ftpUser;
     private static String ftpPassword;
+    private static int queueCapacity = 10000;
+    private static int debounceMillis = 500;
+    private static int debounceMaxMillis = 5000;
+    private static boolean reconcileOnStartup = true;
+    private static boolean hashIndexEnabled = true;
+    private static boolean manifestEnabled = true;
+    private static int manifestRefreshSeconds = 30;
+    private static String storageMode = "full";
+    private static int deltaKeyframeInterval = 10;
+    private static String syncExecutor = "fixed";
+    private static String compressionCodec = "none";
+    private static int encryptionParallelism = Runtime.getRuntime().availableProcessors();
+    private static int resumeThresholdMb = 8;
+    private static int transferRetries = 3;
+    private static int parallelDownloadMinMb = 32;
+    private static int parallelDownloadConnections = 4;
+    private static int poolMinConnections = 2;
+    private static int poolMaxConnections = 10;
+    private static int poolInitialConnections = 4;
+    private static int poolWarmUpConnections = 4;
+    private static int poolReservedInteractive = 1;
+    private static int poolReservedSmallSync = 1;
+    private static int poolAgingSeconds = 10;
+    private static int largeFileMb = 8;
+    private static boolean batchEnabled = false;
+    private static int batchMaxFiles = 200;
+    private static int batchMaxFileKb = 64;
+    private static int batchWindowMillis = 200;
+    private static int poolValidateIdleSeconds = 5;
+    private static int poolKeepAliveSeconds = 60;
+    private static int poolMaxIdleSeconds = 300;
+    private static int poolMaxLifetimeSeconds = 1800;
 
     public static void cargarConfiguracion() {
 
@@ -38,6 +70,42 @@ public class Configurador {
             ftpPort = Integer.parseInt(prop.getProperty("ftp.port"));
             ftpUser = prop.getProperty("ftp.username");
             ftpPassword = prop.getProperty("ftp.password");
+            queueCapacity = getInt(prop, "sync.queue.capacity", queueCapacity);
+            debounceMillis = getInt(prop, "sync.debounce.ms", debounceMillis);
+            debounceMaxMillis = getInt(prop, "sync.debounce.max.ms", debounceMaxMillis);
+            reconcileOnStartup = getBoolean(prop, "sync.reconcile.enabled", reconcileOnStartup);
+            hashIndexEnabled = getBoolean(prop, "sync.hashindex.enabled", hashIndexEnabled);
+            manifestEnabled = getBoolean(prop, "remote.manifest.enabled", manifestEnabled);
+            manifestRefreshSeconds = Math.max(0, getInt(prop, "remote.manifest.refresh.seconds",
+                    manifestRefreshSeconds));
+            storageMode = prop.getProperty("storage.mode", storageMode).trim().toLowerCase();
+            deltaKeyframeInterval = getInt(prop, "storage.delta.keyframe.interval", deltaKeyframeInterval);
+            syncExecutor = prop.getProperty("sync.executor", syncExecutor).trim().toLowerCase();
+            compressionCodec = prop.getProperty("compression.codec", compressionCodec).trim().toLowerCase();
+            encryptionParallelism = Math.max(1, getInt(prop, "encryption.parallelism", encryptionParallelism));
+            resumeThresholdMb = getInt(prop, "transfer.resume.threshold.mb", resumeThresholdMb);
+            transferRetries = Math.max(0, getInt(prop, "transfer.retries", transferRetries));
+            parallelDownloadMinMb = getInt(prop, "transfer.parallel.min.mb", parallelDownloadMinMb);
+            parallelDownloadConnections = Math.max(1,
+                    getInt(prop, "transfer.parallel.connections", parallelDownloadConnections));
+            poolMinConnections = Math.max(1, getInt(prop, "ftp.pool.min", poolMinConnections));
+            poolMaxConnections = Math.max(poolMinConnections, getInt(prop, "ftp.pool.max", poolMaxConnections));
+            poolInitialConnections = getInt(prop, "ftp.pool.initial", poolInitialConnections);
+            poolWarmUpConnections = Math.max(0, getInt(prop, "ftp.pool.warmup", poolWarmUpConnections));
+            poolReservedInteractive = Math.max(0,
+                    getInt(prop, "ftp.pool.reserve.interactive", poolReservedInteractive));
+            poolReservedSmallSync = Math.max(0, getInt(prop, "ftp.pool.reserve.small", poolReservedSmallSync));
+            poolAgingSeconds = Math.max(1, getInt(prop, "ftp.pool.aging.seconds", poolAgingSeconds));
+            largeFileMb = getInt(prop, "sync.large.file.mb", largeFileMb);
+            batchEnabled = getBoolean(prop, "sync.batch.enabled", batchEnabled);
+            batchMaxFiles = Math.max(2, getInt(prop, "sync.batch.max.files", batchMaxFiles));
+            batchMaxFileKb = Math.max(1, getInt(prop, "sync.batch.max.file.kb", batchMaxFileKb));
+            batchWindowMillis = Math.max(0, getInt(prop, "sync.batch.window.ms", batchWindowMillis));
+            poolValidateIdleSeconds = Math.max(0,
+                    getInt(prop, "ftp.pool.validate.idle.seconds", poolValidateIdleSeconds));
+            poolKeepAliveSeconds = Math.max(1, getInt(prop, "ftp.pool.keepalive.seconds", poolKeepAliveSeconds));
+            poolMaxIdleSeconds = Math.max(1, getInt(prop, "ftp.pool.max.idle.seconds", poolMaxIdleSeconds));
+            poolMaxLifetimeSeconds = Math.max(1, getInt(prop, "ftp.pool.max.lifetime.seconds", poolMaxLifetimeSeconds));
 
             Logger.info("Configuración cargada: "
                     + "Encryption enabled: " + encryptionEnabled
@@ -87,6 +155,266 @@ public class Configurador {
         return ftpPassword;
     }
 
+    /**
+     * Numero maximo de rutas distintas pendientes en la cola de eventos
+     */
+    public static int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Ventana de silencio en ms antes de despachar los eventos de una ruta, 0 la desactiva
+     */
+    public static int getDebounceMillis() {
+        return debounceMillis;
+    }
+
+    /**
+     * Espera maxima de los eventos de un archivo que no deja de modificarse
+     */
+    public static int getDebounceMaxMillis() {
+        return debounceMaxMillis;
+    }
+
+    /**
+     * Si al arrancar se compara syncro con el remoto para subir lo cambiado en parado
+     */
+    public static boolean isReconcileOnStartup() {
+        return reconcileOnStartup;
+    }
+
+    /**
+     * Si se consulta el indice local de hashes para no subir contenido sin cambios
+     */
+    public static boolean isHashIndexEnabled() {
+        return hashIndexEnabled;
+    }
+
+    /**
+     * Si se mantiene el manifiesto remoto para listar sin recorrer el servidor
+     */
+    public static boolean isManifestEnabled() {
+        return manifestEnabled;
+    }
+
+    /**
+     * Cada cuanto se comprueba si otro cliente ha cambiado el manifiesto, 0 antes de cada operacion
+     */
+    public static int getManifestRefreshSeconds() {
+        return manifestRefreshSeconds;
+    }
+
+    /**
+     * Como se ejecutan los Obreros: "fixed" (pool de 10 hilos) o "virtual"
+     * (un hilo virtual por tarea, limitado por las conexiones del pool)
+     */
+    public static String getSyncExecutor() {
+        return syncExecutor;
+    }
+
+    /**
+     * Modo de almacenamiento remoto: "full" (copias completas), "chunked"
+     * (trozos deduplicados) o "delta" (historial como deltas binarios)
+     */
+    public static String getStorageMode() {
+        return storageMode;
+    }
+
+    /**
+     * Cada cuantas versiones se guarda una copia completa en modo delta
+     */
+    public static int getDeltaKeyframeInterval() {
+        return deltaKeyframeInterval;
+    }
+
+    /**
+     * Codec con el que se comprimen los archivos antes de subirlos, o "none"
+     */
+    public static String getCompressionCodec() {
+        return compressionCodec;
+    }
+
+    public static boolean isCompressionEnabled() {
+        return !compressionCodec.equals("none");
+    }
+
+    /**
+     * Hilos usados para cifrar y descifrar los segmentos de un archivo grande
+     */
+    public static int getEncryptionParallelism() {
+        return encryptionParallelism;
+    }
+
+    /**
+     * Tamaño a partir del cual las transferencias se anotan en el diario para
+     * poder reanudarlas
+     */
+    public static long getResumeThresholdBytes() {
+        return resumeThresholdMb * 1024L * 1024L;
+    }
+
+    /**
+     * Reintentos de una transferencia cortada, o de un evento que no encontro
+     * conexion libre, antes de darlos por fallidos
+     */
+    public static int getTransferRetries() {
+        return transferRetries;
+    }
+
+    /**
+     * Tamaño a partir del cual una descarga se reparte en rangos paralelos
+     */
+    public static long getParallelDownloadThresholdBytes() {
+        return parallelDownloadMinMb * 1024L * 1024L;
+    }
+
+    /**
+     * Conexiones maximas que usa una sola descarga en paralelo
+     */
+    public static int getParallelDownloadConnections() {
+        return parallelDownloadConnections;
+    }
+
+    /**
+     * Tamaño minimo al que puede bajar el pool de conexiones adaptativo
+     */
+    public static int getPoolMinConnections() {
+        return poolMinConnections;
+    }
+
+    /**
+     * Tamaño maximo al que puede crecer el pool de conexiones adaptativo
+     */
+    public static int getPoolMaxConnections() {
+        return poolMaxConnections;
+    }
+
+    /**
+     * Tamaño con el que arranca el pool antes de medir nada
+     */
+    public static int getPoolInitialConnections() {
+        return poolInitialConnections;
+    }
+
+    /**
+     * Conexiones que se abren en paralelo al arrancar, antes del primer uso
+     */
+    public static int getPoolWarmUpConnections() {
+        return poolWarmUpConnections;
+    }
+
+    /**
+     * Conexiones que la sincronizacion en segundo plano deja siempre libres
+     * para las acciones del menu
+     */
+    public static int getPoolReservedInteractive() {
+        return poolReservedInteractive;
+    }
+
+    /**
+     * Conexiones que la sincronizacion de archivos grandes deja libres para
+     * la de archivos pequeños
+     */
+    public static int getPoolReservedSmallSync() {
+        return poolReservedSmallSync;
+    }
+
+    /**
+     * Segundos de espera tras los que una peticion de conexion sube de
+     * prioridad
+     */
+    public static int getPoolAgingSeconds() {
+        return poolAgingSeconds;
+    }
+
+    /**
+     * Tamaño a partir del cual la sincronizacion de un archivo va con
+     * prioridad de archivo grande
+     */
+    public static long getLargeFileBytes() {
+        return largeFileMb * 1024L * 1024L;
+    }
+
+    /**
+     * Si los archivos nuevos pequeños se agrupan en lotes que se suben como
+     * un unico objeto remoto
+     */
+    public static boolean isBatchEnabled() {
+        return batchEnabled;
+    }
+
+    /**
+     * Numero maximo de archivos por lote
+     */
+    public static int getBatchMaxFiles() {
+        return batchMaxFiles;
+    }
+
+    /**
+     * Tamaño maximo de un archivo para que entre en un lote
+     */
+    public static long getBatchMaxFileBytes() {
+        return batchMaxFileKb * 1024L;
+    }
+
+    /**
+     * Tiempo que un lote espera a que lleguen mas archivos antes de subirse
+     */
+    public static int getBatchWindowMillis() {
+        return batchWindowMillis;
+    }
+
+    /**
+     * Segundos parada a partir de los cuales una conexion se valida con NOOP
+     * antes de prestarla
+     */
+    public static int getPoolValidateIdleSeconds() {
+        return poolValidateIdleSeconds;
+    }
+
+    /**
+     * Intervalo de NOOP de mantenimiento, tanto a conexiones paradas como por
+     * el canal de control durante una transferencia
+     */
+    public static int getPoolKeepAliveSeconds() {
+        return poolKeepAliveSeconds;
+    }
+
+    public static int getPoolMaxIdleSeconds() {
+        return poolMaxIdleSeconds;
+    }
+
+    public static int getPoolMaxLifetimeSeconds() {
+        return poolMaxLifetimeSeconds;
+    }
+
+    /**
+     * Lee una propiedad booleana, usando el valor por defecto si no existe
+     */
+    private static boolean getBoolean(Properties prop, String key, boolean defaultValue) {
+        String value = prop.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Lee una propiedad entera, usando el valor por defecto si no existe o no es valida
+     */
+    private static int getInt(Properties prop, String key, int defaultValue) {
+        String value = prop.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            Logger.warning("Valor no valido para " + key + ": " + value + ", usando " + defaultValue);
+            return defaultValue;
+        }
+    }
+
     
     
 }
@@ -0,0 +1,168 @@
+package lib.Connection;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+import lib.Utils.Logger;
+
+/**
+ * Decide cuantas conexiones simultaneas usar con el servidor a partir de lo
+ * que se observa, con un control AIMD:
+ *
+ * - Suma una conexion por ventana cuando todas estaban ocupadas (alguien tuvo
+ * que esperar) y el caudal total no ha bajado respecto a la ventana anterior.
+ * - Si tras subir el caudal cae claramente, la conexion extra solo añade
+ * contencion: se quita y se mantiene el tamaño un tiempo.
+ * - Si el servidor rechaza una conexion por exceso de sesiones (421) se
+ * divide el tamaño a la mitad y no se vuelve a pasar del tamaño que fallo
+ * durante un tiempo.
+ *
+ * Siempre entre el minimo y el maximo configurados.
+ */
+public class AdaptivePoolSizer {
+
+    /**
+     * Caida de caudal tras una subida que se considera que la subida empeoro
+     */
+    private static final double GRADIENT_DROP = 0.8;
+    /**
+     * Ventanas que se mantiene el tamaño tras una bajada
+     */
+    private static final int HOLD_WINDOWS = 6;
+    /**
+     * Tiempo durante el que no se vuelve a probar el tamaño que provoco un 421
+     */
+    private static final long OVERLOAD_MEMORY_MILLIS = 5 * 60 * 1000L;
+    /**
+     * Rechazos seguidos dentro de este margen son la misma rafaga y solo se
+     * divide el tamaño una vez
+     */
+    private static final long OVERLOAD_BURST_MILLIS = 2000;
+
+    private final IntConsumer resize;
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile boolean saturated = false;
+
+    private int floor;
+    private int ceiling;
+    private int limit;
+    private long windowStart = System.nanoTime();
+    private double lastThroughput = -1;
+    private boolean grewLastWindow = false;
+    private int holdWindows = 0;
+    private int overloadCap = Integer.MAX_VALUE;
+    private long overloadUntil = 0;
+    private long lastOverload = 0;
+
+    /**
+     * @param resize recibe el nuevo tamaño cada vez que cambia
+     */
+    public AdaptivePoolSizer(int floor, int ceiling, int initial, IntConsumer resize) {
+        this.floor = floor;
+        this.ceiling = ceiling;
+        this.limit = Math.max(floor, Math.min(ceiling, initial));
+        this.resize = resize;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Bytes transferidos por cualquier conexion del pool
+     */
+    public void onBytes(long count) {
+        bytes.addAndGet(count);
+    }
+
+    /**
+     * Alguien ha tenido que esperar porque todas las conexiones estaban ocupadas
+     */
+    public void onWait() {
+        saturated = true;
+    }
+
+    /**
+     * El servidor ha rechazado una conexion nueva por exceso de sesiones
+     *
+     * @param open sesiones abiertas o abriendose en ese momento
+     */
+    public synchronized void onOverload(int open) {
+        long now = System.currentTimeMillis();
+        boolean sameBurst = now - lastOverload < OVERLOAD_BURST_MILLIS;
+        lastOverload = now;
+        overloadCap = Math.max(floor, Math.min(limit, Math.max(1, open)));
+        overloadUntil = now + OVERLOAD_MEMORY_MILLIS;
+        int target = Math.min(overloadCap, sameBurst ? limit : limit / 2);
+        if (target == limit) {
+            return;
+        }
+        Logger.warning("FTP server refused a new session with " + open + " open, pool limited to "
+                + Math.max(floor, target));
+        holdWindows = HOLD_WINDOWS;
+        grewLastWindow = false;
+        apply(target);
+    }
+
+    /**
+     * Cierra la ventana de medida actual y ajusta el tamaño. Se llama
+     * periodicamente.
+     */
+    public synchronized void tick() {
+        long now = System.nanoTime();
+        double seconds = (now - windowStart) / 1e9;
+        windowStart = now;
+        long transferred = bytes.getAndSet(0);
+        boolean wasSaturated = saturated;
+        saturated = false;
+        if (seconds <= 0 || transferred == 0) {
+            // Sin transferencias no hay nada que medir
+            grewLastWindow = false;
+            return;
+        }
+
+        double throughput = transferred / seconds;
+        double previous = lastThroughput;
+        lastThroughput = throughput;
+
+        if (holdWindows > 0) {
+            holdWindows--;
+            grewLastWindow = false;
+            return;
+        }
+
+        if (grewLastWindow && previous > 0 && throughput < previous * GRADIENT_DROP) {
+            grewLastWindow = false;
+            holdWindows = HOLD_WINDOWS;
+            apply(limit - 1);
+            return;
+        }
+
+        int cap = System.currentTimeMillis() < overloadUntil ? overloadCap : ceiling;
+        boolean keepingUp = previous < 0 || throughput >= previous * GRADIENT_DROP;
+        if (wasSaturated && limit < Math.min(ceiling, cap) && keepingUp) {
+            grewLastWindow = true;
+            apply(limit + 1);
+        } else {
+            grewLastWindow = false;
+        }
+    }
+
+    /**
+     * Cambia los limites configurados, ajustando el tamaño actual si queda fuera
+     */
+    public synchronized void setBounds(int floor, int ceiling) {
+        this.floor = Math.max(1, floor);
+        this.ceiling = Math.max(this.floor, ceiling);
+        apply(limit);
+    }
+
+    private void apply(int target) {
+        target = Math.max(floor, Math.min(ceiling, target));
+        if (target != limit) {
+            Logger.info("FTP pool size " + limit + " -> " + target);
+            limit = target;
+            resize.accept(target);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package lib.Connection;
+
+import java.io.IOException;
+
+/**
+ * No ha quedado libre ninguna conexion del pool a tiempo. No indica un fallo
+ * del servidor: la operacion se puede repetir tal cual mas tarde.
+ */
+public class ConnectionTimeoutException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ConnectionTimeoutException(String message) {
+        super(message);
+    }
+}
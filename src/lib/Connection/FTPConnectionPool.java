@@ -1,37 +1,74 @@
 package lib.Connection;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPConnectionClosedException;
+import org.apache.commons.net.io.CopyStreamAdapter;
 
 import lib.Configurador;
-import lib.Factory.FileTransferFactory;
+import lib.Enum.TransferPriority;
 import lib.Utils.Logger;
 
 public class FTPConnectionPool {
 
+    /**
+     * Espera maxima de la respuesta al NOOP de validacion
+     */
+    private static final int VALIDATION_TIMEOUT_MS = 5000;
+
+    /**
+     * Duracion de cada ventana de medida del caudal para ajustar el tamaño
+     */
+    private static final long SIZING_WINDOW_MS = 2000;
+
     private static FTPConnectionPool instance;
-    private final ConcurrentLinkedQueue<FTPClient> connectionPool = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<PooledFTPClient> connectionPool = new ConcurrentLinkedQueue<>();
     private final AtomicInteger activeConnections = new AtomicInteger(0);
+    private final AtomicInteger connecting = new AtomicInteger(0);
 
     private String server;
     private int port;
     private String username;
     private String password;
-    private final Semaphore connectionSemaphore;
+    private final PriorityPermits connectionSemaphore;
+    private final AdaptivePoolSizer sizer;
     private int maxConnections;
 
+    private final long validateAfterMillis = Configurador.getPoolValidateIdleSeconds() * 1000L;
+    private final long keepAliveMillis = Configurador.getPoolKeepAliveSeconds() * 1000L;
+    private final long maxIdleMillis = Configurador.getPoolMaxIdleSeconds() * 1000L;
+    private final long maxLifetimeMillis = Configurador.getPoolMaxLifetimeSeconds() * 1000L;
+    private final ScheduledExecutorService reaper;
+
     private FTPConnectionPool() {
         this.server = Configurador.getFtpServer();
         this.port = Configurador.getFtpPort();
         this.username = Configurador.getFtpUser();
         this.password = Configurador.getFtpPassword();
-        this.maxConnections = 10;
-        this.connectionSemaphore = new Semaphore(maxConnections, true);
+        this.maxConnections = Configurador.getPoolMaxConnections();
+        this.sizer = new AdaptivePoolSizer(Configurador.getPoolMinConnections(), maxConnections,
+                Configurador.getPoolInitialConnections(), this::resize);
+        this.connectionSemaphore = createPermits(sizer.getLimit());
+
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "FTPPoolReaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, Math.min(keepAliveMillis, maxIdleMillis) / 2);
+        reaper.scheduleWithFixedDelay(this::reapIdleConnections, period, period, TimeUnit.MILLISECONDS);
+        reaper.scheduleAtFixedRate(sizer::tick, SIZING_WINDOW_MS, SIZING_WINDOW_MS, TimeUnit.MILLISECONDS);
     }
 
     public static synchronized FTPConnectionPool getInstance() {
@@ -42,7 +79,9 @@ public class FTPConnectionPool {
     }
 
     /**
-     * Configura el pool de conexiones FTP
+     * Configura el pool de conexiones FTP. El nuevo maximo se aplica en
+     * caliente: si el tamaño actual lo supera, las conexiones sobrantes se
+     * cierran segun se van devolviendo.
      */
     public void configure(String server, int port,
             String username, String password, int maxConnections) {
@@ -51,11 +90,49 @@ public class FTPConnectionPool {
         this.username = username;
         this.password = password;
         this.maxConnections = maxConnections;
+        sizer.setBounds(Math.min(Configurador.getPoolMinConnections(), maxConnections), maxConnections);
         Logger.info("FTP pool configured for " + server + ":" + port + " with max "
                 + maxConnections + " connections");
 
     }
 
+    /**
+     * Permisos repartidos con las reservas y el envejecimiento configurados
+     * para las conexiones del pool
+     */
+    public static PriorityPermits createPermits(int limit) {
+        return new PriorityPermits(limit, new int[] {
+                Configurador.getPoolReservedInteractive(), Configurador.getPoolReservedSmallSync(), 0 },
+                Configurador.getPoolAgingSeconds() * 1000L);
+    }
+
+    /**
+     * Numero de conexiones simultaneas que permite ahora mismo el pool
+     */
+    public int getPoolSize() {
+        return connectionSemaphore.getLimit();
+    }
+
+    /**
+     * Anota bytes transferidos fuera de storeFile/retrieveFile (por ejemplo
+     * leyendo de retrieveFileStream), para la medida de caudal
+     */
+    public void recordTransfer(long bytes) {
+        sizer.onBytes(bytes);
+    }
+
+    /**
+     * Aplica un nuevo tamaño decidido por el AdaptivePoolSizer y cierra las
+     * conexiones paradas que sobren
+     */
+    private void resize(int limit) {
+        connectionSemaphore.setLimit(limit);
+        PooledFTPClient idle;
+        while (activeConnections.get() > limit && (idle = connectionPool.poll()) != null) {
+            discard(idle);
+        }
+    }
+
     /**
      * Obtiene una conexión FTP del pool o crea una nueva si es necesario
      * Espera si todas las conexiones están en uso
@@ -65,38 +142,60 @@ public class FTPConnectionPool {
      */
     public FTPClient getConnection(int timeoutSeconds) throws IOException, InterruptedException {
         boolean acquired = false;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
 
         try {
-
-            if (timeoutSeconds > 0) {
-                acquired = connectionSemaphore.tryAcquire(timeoutSeconds, TimeUnit.SECONDS);
+            while (true) {
+                acquired = connectionSemaphore.tryAcquire();
                 if (!acquired) {
-                    throw new IOException("Timeout waiting for FTP connection after " + timeoutSeconds + " seconds");
+                    sizer.onWait();
+                    if (timeoutSeconds > 0) {
+                        acquired = connectionSemaphore.tryAcquire(Math.max(0, deadline - System.nanoTime()),
+                                TimeUnit.NANOSECONDS);
+                        if (!acquired) {
+                            throw new ConnectionTimeoutException("Timeout waiting for FTP connection after "
+                                    + timeoutSeconds + " seconds");
+                        }
+                    } else {
+                        Logger.info("Waiting for available FTP connection...");
+                        connectionSemaphore.acquire();
+                        acquired = true;
+                    }
                 }
-            } else {
-                Logger.info("Waiting for available FTP connection...");
-                connectionSemaphore.acquire();
-                acquired = true;
-            }
-
-            // Saca la cabeza de la queue
-            FTPClient ftpClient = connectionPool.poll();
 
-            if (ftpClient == null) {
-                ftpClient = createConnection();
-            } else {
-                Logger.info("Reusing existing FTP connection from pool");
-            }
+                // Saca la cabeza de la queue, descartando las que ya no sirven
+                PooledFTPClient ftpClient;
+                while ((ftpClient = connectionPool.poll()) != null) {
+                    if (isUsable(ftpClient, System.currentTimeMillis())) {
+                        Logger.info("Reusing existing FTP connection from pool");
+                        break;
+                    }
+                    discard(ftpClient);
+                }
 
-            if (!ftpClient.isConnected()) {
-                try {
-                    ftpClient.disconnect();
-                } catch (Exception e) {
+                if (ftpClient == null) {
+                    try {
+                        connecting.incrementAndGet();
+                        ftpClient = createConnection();
+                    } catch (FTPConnectionClosedException e) {
+                        // 421: el servidor no admite mas sesiones. Se reduce el
+                        // pool y se espera a que quede libre una de las abiertas
+                        connectionSemaphore.release();
+                        acquired = false;
+                        int open = activeConnections.get();
+                        sizer.onOverload(open + connecting.get() - 1);
+                        if (open == 0) {
+                            throw e;
+                        }
+                        continue;
+                    } finally {
+                        connecting.decrementAndGet();
+                    }
                 }
-                ftpClient = createConnection();
-            }
 
-            return ftpClient;
+                ftpClient.touch();
+                return ftpClient;
+            }
 
         } catch (InterruptedException e) {
             if (acquired) {
@@ -114,29 +213,184 @@ public class FTPConnectionPool {
     }
 
     /**
-     * Devuelve una conexion al pool cuando ya no se necesita
+     * Abre en segundo plano y a la vez hasta count conexiones y las deja en el
+     * pool, para que las primeras transferencias no tengan que pagar cada una
+     * su conexion, login, TYPE y PASV en serie
+     *
+     * @return futuro con el numero de conexiones abiertas
+     */
+    public CompletableFuture<Integer> warmUp(int count) {
+        int target = Math.min(count, getPoolSize()) - activeConnections.get();
+        if (target <= 0) {
+            return CompletableFuture.completedFuture(0);
+        }
+
+        ExecutorService openers = Executors.newFixedThreadPool(target, r -> {
+            Thread thread = new Thread(r, "FTPPoolWarmUp");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        List<CompletableFuture<Boolean>> opened = new ArrayList<>();
+        for (int i = 0; i < target; i++) {
+            opened.add(CompletableFuture.supplyAsync(this::openIdleConnection, openers));
+        }
+        openers.shutdown();
+
+        return CompletableFuture.allOf(opened.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            int ready = (int) opened.stream().filter(CompletableFuture::join).count();
+            Logger.info("FTP pool warmed up with " + ready + " connections in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return ready;
+        });
+    }
+
+    /**
+     * Abre una conexion y la deja parada en el pool, si hay permiso libre
+     */
+    private boolean openIdleConnection() {
+        // Hilo propio del calentamiento: puede usar tambien los permisos
+        // reservados, que solo ocupa mientras abre la conexion
+        TransferPriority.set(TransferPriority.INTERACTIVE);
+        if (!connectionSemaphore.tryAcquire()) {
+            return false;
+        }
+        connecting.incrementAndGet();
+        try {
+            connectionPool.offer(createConnection());
+            return true;
+        } catch (FTPConnectionClosedException e) {
+            sizer.onOverload(activeConnections.get() + connecting.get() - 1);
+            return false;
+        } catch (IOException e) {
+            Logger.warning("Could not open FTP connection during warm-up: " + e.getMessage());
+            return false;
+        } finally {
+            connecting.decrementAndGet();
+            connectionSemaphore.release();
+        }
+    }
+
+    /**
+     * Comprueba si una conexion del pool se puede prestar: no ha superado su
+     * vida maxima ni el tiempo maximo parada y, si lleva un rato sin usarse,
+     * responde a un NOOP
+     */
+    private boolean isUsable(PooledFTPClient ftpClient, long now) {
+        if (!ftpClient.isConnected() || isExpired(ftpClient, now)) {
+            return false;
+        }
+        if (ftpClient.quietMillis(now) < validateAfterMillis) {
+            return true;
+        }
+        boolean alive = ftpClient.validate(VALIDATION_TIMEOUT_MS);
+        if (!alive) {
+            Logger.warning("Stale FTP connection detected on borrow, replacing it");
+        }
+        return alive;
+    }
+
+    private boolean isExpired(PooledFTPClient ftpClient, long now) {
+        return ftpClient.idleMillis(now) >= maxIdleMillis || ftpClient.ageMillis(now) >= maxLifetimeMillis;
+    }
+
+    /**
+     * Devuelve una conexion al pool cuando ya no se necesita. Si se ha cerrado
+     * mientras estaba prestada se descarta, liberando igualmente su permiso.
+     *
+     * No se vuelve al directorio de trabajo: quien la pida hace su propio CWD,
+     * que no cuesta nada si ya esta alli.
      */
     public void releaseConnection(FTPClient ftpClient) {
-        if (ftpClient != null && ftpClient.isConnected()) {
-            try {
-                // Siempre al raiz
-                ftpClient.changeWorkingDirectory(FileTransferFactory.getWORK_DIR());
-            } catch (Exception e) {
-                Logger.warning("No se pudo restablecer el directorio al liberar: " + e.getMessage());
+        if (ftpClient == null) {
+            return;
+        }
+        if (!(ftpClient instanceof PooledFTPClient pooled) || !ftpClient.isConnected()) {
+            invalidateConnection(ftpClient);
+            return;
+        }
+
+        pooled.touch();
+        connectionPool.offer(pooled);
+        connectionSemaphore.release();
+        Logger.info("FTP connection returned to pool. Available permits: " +
+                   connectionSemaphore.availablePermits());
+    }
+
+    /**
+     * Descarta una conexion que ha fallado a mitad de una operacion, en lugar
+     * de devolverla al pool, y libera su permiso
+     */
+    public void invalidateConnection(FTPClient ftpClient) {
+        if (ftpClient == null) {
+            return;
+        }
+        try {
+            ftpClient.disconnect();
+        } catch (IOException e) {
+            // Ignorar, la conexion ya estaba rota
+        }
+        activeConnections.decrementAndGet();
+        connectionSemaphore.release();
+        Logger.info("Discarded broken FTP connection. Available permits: "
+                + connectionSemaphore.availablePermits());
+    }
+
+    /**
+     * Cierra una conexion que estaba en el pool (sin permiso asociado)
+     */
+    private void discard(PooledFTPClient ftpClient) {
+        ftpClient.closeQuietly();
+        activeConnections.decrementAndGet();
+    }
+
+    /**
+     * Recorre las conexiones paradas: cierra las que han superado el tiempo
+     * maximo parada o su vida maxima y manda un NOOP a las que llevan un rato
+     * sin usarse, para que ni el servidor ni un firewall intermedio las corten
+     * por inactividad
+     */
+    private void reapIdleConnections() {
+        try {
+            int closed = 0;
+            long now = System.currentTimeMillis();
+            // Copia, porque las que siguen sirviendo se vuelven a encolar
+            for (PooledFTPClient ftpClient : new ArrayList<>(connectionPool)) {
+                // Solo se toca si se consigue sacar antes que un getConnection
+                if (!connectionPool.remove(ftpClient)) {
+                    continue;
+                }
+                boolean keep = ftpClient.isConnected() && !isExpired(ftpClient, now)
+                        && (ftpClient.quietMillis(now) < keepAliveMillis || ftpClient.validate(VALIDATION_TIMEOUT_MS));
+                if (!keep) {
+                    discard(ftpClient);
+                    closed++;
+                } else {
+                    connectionPool.offer(ftpClient);
+                }
             }
-            
-            connectionPool.offer(ftpClient);
-            connectionSemaphore.release();
-            Logger.info("FTP connection returned to pool. Available permits: " + 
-                       connectionSemaphore.availablePermits());
+            if (closed > 0) {
+                Logger.info("Closed " + closed + " idle or expired FTP connections, " + activeConnections.get()
+                        + " open");
+            }
+        } catch (RuntimeException e) {
+            Logger.error("Error checking idle FTP connections: " + e.getMessage());
         }
     }
 
     /**
      * Crea una nueva conexion FTP
      */
-    private FTPClient createConnection() throws IOException {
-        FTPClient ftpClient = new FTPClient();
+    private PooledFTPClient createConnection() throws IOException {
+        PooledFTPClient ftpClient = new PooledFTPClient();
+        // NOOP por el canal de control durante transferencias largas
+        ftpClient.setControlKeepAliveTimeout(Duration.ofMillis(keepAliveMillis));
+        ftpClient.setCopyStreamListener(new CopyStreamAdapter() {
+            @Override
+            public void bytesTransferred(long totalBytesTransferred, int bytesTransferred, long streamSize) {
+                sizer.onBytes(bytesTransferred);
+            }
+        });
         try {
             Logger.info("Creating new FTP connection to " + server);
             ftpClient.connect(server, port);
@@ -152,14 +406,7 @@ public class FTPConnectionPool {
             activeConnections.incrementAndGet();
             return ftpClient;
         } catch (IOException e) {
-            if (ftpClient.isConnected()) {
-                try {
-                    ftpClient.disconnect();
-                } catch (IOException ex) {
-                    // Ignorar
-                }
-            }
-            activeConnections.decrementAndGet();
+            ftpClient.closeQuietly();
             throw e;
         }
     }
@@ -168,6 +415,7 @@ public class FTPConnectionPool {
      * Cierra todas las conexiones en el pool
      */
     public void shutdown() {
+        reaper.shutdownNow();
         FTPClient ftpClient;
         while ((ftpClient = connectionPool.poll()) != null) {
             try {
@@ -7,11 +7,8 @@ import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.List;
 
-import lib.Configurador;
 import lib.Factory.FileTransferFactory;
 import lib.Interfaces.FileTransferHandler;
-import lib.Security.CrossAppEncryption;
-import lib.Security.EncryptionCredentials;
 import lib.Utils.Logger;
 
 public class FileOperationService {
@@ -39,43 +36,26 @@ public class FileOperationService {
         }
     }
 
+    /**
+     * Descarga un archivo a la carpeta downloads. La cadena de manejadores
+     * entrega el contenido ya desencriptado y reconstruido.
+     */
     public boolean downloadFile(String remoteFileName) {
         try {
             initDownloadFolder("downloads");
-            
+
             String fileName = new File(remoteFileName).getName();
-            File encryptedFile = new File("downloads", "temp_" + fileName);
             File finalFile = new File("downloads", fileName);
 
-            boolean result = transferHandler.downloadFile(remoteFileName, encryptedFile);
+            boolean result = transferHandler.downloadFile(remoteFileName, finalFile);
 
             if (!result) {
                 Logger.error("Failed to download file: " + remoteFileName);
                 return false;
             }
 
-            if (Configurador.isEncryptionEnabled()) {
-                Logger.info("Decrypting file: " + encryptedFile.getAbsolutePath());
-                try {
-                    // Desencriptar a archivo final
-                    CrossAppEncryption.decryptFile(encryptedFile, finalFile, EncryptionCredentials.PASSWORD);
-                    // Eliminar archivo temporal encriptado
-                    encryptedFile.delete();
-                    return true;
-                } catch (IllegalArgumentException e) {
-                    // El archivo no está encriptado, lo renombro
-                    Logger.info("File is not encrypted, using as is: " + remoteFileName);
-                    encryptedFile.renameTo(finalFile);
-                    return true;
-                } catch (Exception e) {
-                    Logger.error("Error decrypting file: " + e.getMessage());
-                    return false;
-                }
-            } else {
-                encryptedFile.renameTo(finalFile);
-                Logger.info("File downloaded successfully: " + remoteFileName);
-                return true;
-            }
+            Logger.info("File downloaded successfully: " + remoteFileName);
+            return true;
         } catch (IOException e) {
             System.out.println(e);
             Logger.error("Error downloading file: " + e.getMessage());
@@ -0,0 +1,176 @@
+package lib.Connection;
+
+import java.io.IOException;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+/**
+ * Cliente FTP del pool. Recuerda cuando se creo y cuando se uso por ultima
+ * vez para poder validarlo antes de prestarlo y retirarlo cuando lleva
+ * demasiado tiempo parado o abierto.
+ *
+ * Tambien recuerda su directorio actual: un CWD al directorio en el que ya
+ * esta, o un PWD cuya respuesta ya se conoce, se resuelven sin ir al
+ * servidor.
+ */
+public class PooledFTPClient extends FTPClient {
+
+    private final long createdAt = System.currentTimeMillis();
+    private volatile long lastUsed = createdAt;
+    private volatile long lastChecked = createdAt;
+
+    /**
+     * Directorio actual absoluto, o null si no se sabe
+     */
+    private volatile String workingDirectory;
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Marca el cliente como usado ahora
+     */
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Tiempo sin que nadie haya usado la conexion; los NOOP de validacion no
+     * cuentan como uso
+     */
+    long idleMillis(long now) {
+        return now - lastUsed;
+    }
+
+    /**
+     * Tiempo sin trafico por el canal de control, contando los NOOP
+     */
+    long quietMillis(long now) {
+        return now - Math.max(lastUsed, lastChecked);
+    }
+
+    long ageMillis(long now) {
+        return now - createdAt;
+    }
+
+    @Override
+    public boolean changeWorkingDirectory(String pathname) throws IOException {
+        String target = resolve(pathname);
+        if (target != null && target.equals(workingDirectory)) {
+            return true;
+        }
+        boolean changed = super.changeWorkingDirectory(pathname);
+        if (changed) {
+            workingDirectory = target;
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean changeToParentDirectory() throws IOException {
+        workingDirectory = null;
+        return super.changeToParentDirectory();
+    }
+
+    @Override
+    public String printWorkingDirectory() throws IOException {
+        String known = workingDirectory;
+        if (known != null) {
+            return known;
+        }
+        String reply = super.printWorkingDirectory();
+        if (reply != null && reply.startsWith("/")) {
+            workingDirectory = normalize(reply);
+        }
+        return reply;
+    }
+
+    @Override
+    public boolean reinitialize() throws IOException {
+        workingDirectory = null;
+        return super.reinitialize();
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+        workingDirectory = null;
+        super.disconnect();
+    }
+
+    /**
+     * Ruta absoluta a la que lleva un CWD, o null si no se puede saber sin
+     * preguntar al servidor
+     */
+    private String resolve(String pathname) {
+        if (pathname == null || pathname.isEmpty()) {
+            return null;
+        }
+        String path;
+        if (pathname.startsWith("/")) {
+            path = pathname;
+        } else if (workingDirectory != null) {
+            path = workingDirectory + "/" + pathname;
+        } else {
+            return null;
+        }
+        for (String segment : path.split("/")) {
+            if (segment.equals(".") || segment.equals("..")) {
+                return null;
+            }
+        }
+        return normalize(path);
+    }
+
+    private static String normalize(String path) {
+        String normalized = path.replaceAll("/+", "/");
+        if (normalized.length() > 1 && normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+    /**
+     * Comprueba con un NOOP que el servidor sigue al otro lado. Un socket que
+     * el servidor ha cerrado sin avisar sigue dando isConnected() == true, asi
+     * que esta es la unica forma de saberlo antes de usarlo.
+     *
+     * @param timeoutMillis espera maxima de la respuesta
+     */
+    boolean validate(int timeoutMillis) {
+        if (!isConnected()) {
+            return false;
+        }
+        try {
+            int previous = getSoTimeout();
+            setSoTimeout(timeoutMillis);
+            try {
+                boolean alive = FTPReply.isPositiveCompletion(noop());
+                if (alive) {
+                    lastChecked = System.currentTimeMillis();
+                }
+                return alive;
+            } finally {
+                setSoTimeout(previous);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Cierra la conexion sin esperar a QUIT, ignorando errores
+     */
+    void closeQuietly() {
+        try {
+            disconnect();
+        } catch (IOException e) {
+            // Ignorar, se esta descartando
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package lib.Connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lib.Enum.TransferPriority;
+
+/**
+ * Permisos de conexion repartidos por prioridad en lugar de por orden de
+ * llegada. La prioridad de cada peticion es la del hilo que la hace (ver
+ * TransferPriority).
+ *
+ * - Siempre se atiende primero al que espera con mejor prioridad y, a
+ * igualdad, al que lleva mas tiempo.
+ * - Parte de los permisos queda reservada: la sincronizacion de archivos
+ * grandes no puede usar los reservados a las otras dos clases, ni la de
+ * pequeños los reservados a las acciones interactivas.
+ * - Envejecimiento: cada cierto tiempo de espera una peticion sube una
+ * clase, asi que nada se queda esperando para siempre.
+ *
+ * El numero total de permisos se puede cambiar en caliente con setLimit.
+ */
+public class PriorityPermits {
+
+    private static final TransferPriority[] CLASSES = TransferPriority.values();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final List<Waiter> waiters = new ArrayList<>();
+    private final int[] reserved;
+    private final long agingNanos;
+
+    private int limit;
+    private int inUse = 0;
+    private long sequence = 0;
+
+    private record Waiter(TransferPriority priority, long since, long sequence) {
+    }
+
+    /**
+     * @param reserved    permisos reservados a cada clase, indexado por
+     *                    TransferPriority.ordinal()
+     * @param agingMillis espera tras la que una peticion sube una clase
+     */
+    public PriorityPermits(int limit, int[] reserved, long agingMillis) {
+        this.limit = limit;
+        this.reserved = reserved.clone();
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, agingMillis));
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cambia el numero total de permisos. Si baja, los prestados de mas no se
+     * quitan: simplemente no se vuelven a prestar.
+     */
+    public void setLimit(int newLimit) {
+        lock.lock();
+        try {
+            limit = newLimit;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int availablePermits() {
+        lock.lock();
+        try {
+            return limit - inUse;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Toma un permiso solo si se puede sin esperar
+     */
+    public boolean tryAcquire() {
+        TransferPriority priority = TransferPriority.current();
+        lock.lock();
+        try {
+            if (waiters.isEmpty() && canTake(priority.ordinal())) {
+                inUse++;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Espera un permiso como mucho timeout
+     *
+     * @return false si se agota el tiempo
+     */
+    public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+        return acquire(unit.toNanos(timeout), true);
+    }
+
+    /**
+     * Espera un permiso sin limite de tiempo
+     */
+    public void acquire() throws InterruptedException {
+        acquire(0, false);
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            inUse--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean acquire(long timeoutNanos, boolean timed) throws InterruptedException {
+        long start = System.nanoTime();
+        lock.lockInterruptibly();
+        try {
+            Waiter me = new Waiter(TransferPriority.current(), start, sequence++);
+            waiters.add(me);
+            try {
+                long remaining = timeoutNanos;
+                while (true) {
+                    long now = System.nanoTime();
+                    if (best(now) == me && canTake(rank(me, now))) {
+                        inUse++;
+                        return true;
+                    }
+                    if (timed) {
+                        remaining = timeoutNanos - (now - start);
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                    }
+                    // Se despierta tambien por tiempo para que el envejecimiento avance
+                    long wait = timed ? Math.min(remaining, agingNanos) : agingNanos;
+                    changed.awaitNanos(wait);
+                }
+            } finally {
+                waiters.remove(me);
+                // El siguiente en la cola puede ser ahora el primero
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Clase efectiva de una peticion, contando lo que ha envejecido
+     */
+    private int rank(Waiter waiter, long now) {
+        long promotions = (now - waiter.since()) / agingNanos;
+        return (int) Math.max(0, waiter.priority().ordinal() - promotions);
+    }
+
+    private Waiter best(long now) {
+        Waiter best = null;
+        int bestRank = Integer.MAX_VALUE;
+        for (Waiter waiter : waiters) {
+            int rank = rank(waiter, now);
+            if (rank < bestRank || (rank == bestRank && waiter.sequence() < best.sequence())) {
+                best = waiter;
+                bestRank = rank;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Si una peticion de esa clase puede tomar un permiso sin usar los
+     * reservados a las clases mejores
+     */
+    private boolean canTake(int rank) {
+        int keep = 0;
+        for (int i = 0; i < rank && i < CLASSES.length; i++) {
+            keep += reserved[i];
+        }
+        // Nunca se reserva tanto que una clase se quede sin ningun permiso
+        keep = Math.min(keep, limit - 1);
+        return limit - inUse > keep;
+    }
+}
@@ -0,0 +1,38 @@
+package lib.Enum;
+
+/**
+ * Prioridad con la que un hilo pide conexiones al pool, de mayor a menor.
+ * Cada hilo lleva la suya en un ThreadLocal; si no se ha fijado, cuenta
+ * como sincronizacion de archivo pequeño.
+ */
+public enum TransferPriority {
+    /**
+     * Acciones del menu: alguien esta esperando delante de la pantalla
+     */
+    INTERACTIVE,
+    /**
+     * Sincronizacion en segundo plano de archivos pequeños y borrados
+     */
+    SMALL_SYNC,
+    /**
+     * Sincronizacion en segundo plano de archivos grandes
+     */
+    LARGE_SYNC;
+
+    private static final ThreadLocal<TransferPriority> CURRENT = ThreadLocal.withInitial(() -> SMALL_SYNC);
+
+    public static TransferPriority current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Fija la prioridad del hilo actual
+     *
+     * @return la que tenia antes, para restaurarla
+     */
+    public static TransferPriority set(TransferPriority priority) {
+        TransferPriority previous = CURRENT.get();
+        CURRENT.set(priority);
+        return previous;
+    }
+}
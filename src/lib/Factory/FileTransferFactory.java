@@ -1,13 +1,19 @@
 package lib.Factory;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.net.ftp.FTPClient;
 
 import lib.Configurador;
 import lib.Connection.FTPConnectionPool;
+import lib.Compression.CompressionCodecs;
+import lib.Handlers.ChunkedFileTransferHandler;
+import lib.Handlers.CompressingFileTransferHandler;
+import lib.Handlers.DeltaHistoryFileTransferHandler;
 import lib.Handlers.EncryptedFileTransferHandler;
 import lib.Handlers.StandardFileTransferHandler;
+import lib.Interfaces.CompressionCodec;
 import lib.Interfaces.FileTransferHandler;
 import lib.Security.EncryptionCredentials;
 import lib.Utils.Logger;
@@ -18,8 +24,48 @@ import lib.Utils.Logger;
 public class FileTransferFactory {
     private static FileTransferHandler instance;
 
-    private static String WORK_DIR = "";
-    private static String DIR_HISTORY = "history";
+    private static volatile String WORK_DIR = "";
+    private static volatile String DIR_HISTORY = "history";
+
+    /**
+     * Se completa cuando los directorios remotos estan listos: true si todo
+     * fue bien, false o excepcion si no
+     */
+    private static final CompletableFuture<Boolean> READY = new CompletableFuture<>();
+
+    /**
+     * Prepara el servidor en segundo plano: abre a la vez las conexiones de
+     * calentamiento del pool mientras averigua el directorio de trabajo y crea
+     * el historial, y deja construido el manejador. Quien necesite el
+     * servidor espera al futuro devuelto; el resto puede arrancar ya.
+     */
+    public static CompletableFuture<Boolean> initFileSystemsAsync() {
+        Thread thread = new Thread(() -> {
+            long start = System.nanoTime();
+            FTPConnectionPool.getInstance().warmUp(Configurador.getPoolWarmUpConnections());
+            try {
+                boolean ready = initFileSystems();
+                if (ready) {
+                    getHandler();
+                    Logger.info("Remote file systems ready in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                }
+                READY.complete(ready);
+            } catch (IOException | RuntimeException e) {
+                READY.completeExceptionally(e);
+            }
+        }, "RemoteInit");
+        thread.setDaemon(true);
+        thread.start();
+        return READY;
+    }
+
+    /**
+     * Futuro que se completa cuando el servidor esta listo (ver
+     * initFileSystemsAsync)
+     */
+    public static CompletableFuture<Boolean> ready() {
+        return READY;
+    }
 
     public static boolean initFileSystems() throws IOException {
         FTPClient ftpClient = null;
@@ -39,7 +85,7 @@ public class FileTransferFactory {
              * Check si existe el directorio de historial
              */
             if (!ftpClient.changeWorkingDirectory(DIR_HISTORY)) {
-                if (ftpClient.makeDirectory(DIR_HISTORY)) {
+                if (ftpClient.makeDirectory(DIR_HISTORY) && ftpClient.changeWorkingDirectory(DIR_HISTORY)) {
                     Logger.info("Created history directory: " + DIR_HISTORY);
                     DIR_HISTORY = ftpClient.printWorkingDirectory();
                 } else {
@@ -82,19 +128,43 @@ public class FileTransferFactory {
 
             FileTransferHandler baseHandler = new StandardFileTransferHandler();
             boolean encryptionEnabled = isEncryptionEnabled();
+            String password = null;
 
             if (encryptionEnabled) {
-                String password = EncryptionCredentials.PASSWORD;
+                password = EncryptionCredentials.PASSWORD;
                 if (password != null && !password.isEmpty()) {
                     Logger.info("Encryption enabled for file transfers");
-                    return new EncryptedFileTransferHandler(baseHandler, password);
+                    baseHandler = new EncryptedFileTransferHandler(baseHandler, password);
                 } else {
                     Logger.warning("Encryption configured but no password provided - using standard transfer");
+                    password = null;
                 }
             } else {
                 Logger.info("Using standard file transfer (no encryption)");
             }
 
+            // La compresion va por encima de la encriptacion: lo cifrado ya no se comprime
+            if (Configurador.isCompressionEnabled()) {
+                CompressionCodec codec = CompressionCodecs.byName(Configurador.getCompressionCodec());
+                if (codec != null) {
+                    Logger.info("Compressing file transfers with " + codec.getName());
+                    baseHandler = new CompressingFileTransferHandler(baseHandler, codec);
+                } else {
+                    Logger.warning("Unknown compression codec: " + Configurador.getCompressionCodec()
+                            + " - uploading uncompressed");
+                }
+            }
+
+            String storageMode = Configurador.getStorageMode();
+            if (storageMode.equals("chunked")) {
+                Logger.info("Using chunked storage with deduplicated chunks");
+                return new ChunkedFileTransferHandler(baseHandler, password);
+            }
+            if (storageMode.equals("delta")) {
+                Logger.info("Using delta-encoded history versions");
+                return new DeltaHistoryFileTransferHandler(baseHandler, Configurador.getDeltaKeyframeInterval());
+            }
+
             return baseHandler;
         } catch (Exception e) {
             Logger.error("Error creating file transfer handler: " + e.getMessage());
@@ -0,0 +1,266 @@
+package lib.Handlers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Delta binario estilo rsync: describe un archivo destino como copias de
+ * bloques de un archivo base mas los bytes literales que no aparecen en el.
+ * Los bloques del base se indexan por una suma rodante y cada candidato se
+ * confirma comparando los bytes, ya que ambos archivos estan en local.
+ *
+ * Formato: cabecera "GITFP-DELTA 1\n", tamaño y SHA-256 del base y del
+ * destino, y una secuencia de operaciones 'C' (offset, longitud), 'A'
+ * (longitud, bytes) terminada en 'E'.
+ */
+public class BinaryDelta {
+
+    public static final String MAGIC = "GITFP-DELTA 1\n";
+    private static final int BLOCK_SIZE = 2048;
+    private static final int MAX_LITERAL = 1 << 20;
+
+    /**
+     * Tamaño maximo que se puede mapear de una vez; por encima no se calcula delta
+     */
+    public static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+    private BinaryDelta() {
+    }
+
+    /**
+     * true si el archivo empieza con la cabecera de delta
+     */
+    public static boolean isDelta(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] header = in.readNBytes(MAGIC.length());
+            return Arrays.equals(header, MAGIC.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Escribe en out el delta que reconstruye target a partir de base
+     */
+    public static void encode(File base, File target, File out) throws IOException {
+        if (base.length() > MAX_FILE_SIZE || target.length() > MAX_FILE_SIZE) {
+            throw new IOException("File too large for delta encoding");
+        }
+
+        try (RandomAccessFile baseRaf = new RandomAccessFile(base, "r");
+                RandomAccessFile targetRaf = new RandomAccessFile(target, "r");
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)))) {
+
+            MappedByteBuffer b = baseRaf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, base.length());
+            MappedByteBuffer t = targetRaf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, target.length());
+            int baseLength = (int) base.length();
+            int targetLength = (int) target.length();
+
+            dos.write(MAGIC.getBytes(StandardCharsets.US_ASCII));
+            dos.writeLong(baseLength);
+            dos.write(sha256(b, baseLength));
+            dos.writeLong(targetLength);
+            dos.write(sha256(t, targetLength));
+
+            Map<Integer, int[]> index = indexBlocks(b, baseLength);
+
+            int literalStart = 0;
+            int pos = 0;
+            int weak = targetLength >= BLOCK_SIZE ? checksum(t, 0) : 0;
+
+            while (pos + BLOCK_SIZE <= targetLength) {
+                int match = findMatch(index.get(weak), b, t, pos);
+                if (match >= 0) {
+                    writeLiteral(dos, t, literalStart, pos);
+
+                    // Extiende la copia mientras los bytes sigan coincidiendo
+                    int length = BLOCK_SIZE;
+                    while (pos + length < targetLength && match + length < baseLength
+                            && t.get(pos + length) == b.get(match + length)) {
+                        length++;
+                    }
+                    dos.writeByte('C');
+                    dos.writeLong(match);
+                    dos.writeInt(length);
+
+                    pos += length;
+                    literalStart = pos;
+                    if (pos + BLOCK_SIZE <= targetLength) {
+                        weak = checksum(t, pos);
+                    }
+                    continue;
+                }
+
+                if (pos + BLOCK_SIZE < targetLength) {
+                    weak = roll(weak, t.get(pos), t.get(pos + BLOCK_SIZE));
+                }
+                pos++;
+                if (pos - literalStart >= MAX_LITERAL) {
+                    writeLiteral(dos, t, literalStart, pos);
+                    literalStart = pos;
+                }
+            }
+
+            writeLiteral(dos, t, literalStart, targetLength);
+            dos.writeByte('E');
+        }
+    }
+
+    /**
+     * Reconstruye en out el destino descrito por delta sobre base,
+     * verificando los hashes de ambos
+     */
+    public static void apply(File base, File delta, File out) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(delta)));
+                RandomAccessFile baseRaf = new RandomAccessFile(base, "r");
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(out))) {
+
+            byte[] magic = in.readNBytes(MAGIC.length());
+            if (!Arrays.equals(magic, MAGIC.getBytes(StandardCharsets.US_ASCII))) {
+                throw new IOException("Not a delta file");
+            }
+            long baseLength = in.readLong();
+            byte[] baseHash = in.readNBytes(32);
+            long targetLength = in.readLong();
+            byte[] targetHash = in.readNBytes(32);
+
+            if (baseLength != base.length()) {
+                throw new IOException("Delta base size mismatch");
+            }
+            MappedByteBuffer b = baseRaf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, baseLength);
+            if (!Arrays.equals(baseHash, sha256(b, (int) baseLength))) {
+                throw new IOException("Delta base content mismatch");
+            }
+
+            MessageDigest digest = newDigest();
+            byte[] buffer = new byte[65536];
+            long written = 0;
+            int op;
+            while ((op = in.readByte()) != 'E') {
+                if (op == 'C') {
+                    int offset = (int) in.readLong();
+                    int length = in.readInt();
+                    for (int done = 0; done < length;) {
+                        int n = Math.min(buffer.length, length - done);
+                        b.get(offset + done, buffer, 0, n);
+                        os.write(buffer, 0, n);
+                        digest.update(buffer, 0, n);
+                        done += n;
+                    }
+                    written += length;
+                } else if (op == 'A') {
+                    int length = in.readInt();
+                    for (int done = 0; done < length;) {
+                        int n = in.read(buffer, 0, Math.min(buffer.length, length - done));
+                        if (n < 0) {
+                            throw new IOException("Truncated delta");
+                        }
+                        os.write(buffer, 0, n);
+                        digest.update(buffer, 0, n);
+                        done += n;
+                    }
+                    written += length;
+                } else {
+                    throw new IOException("Unknown delta operation: " + op);
+                }
+            }
+
+            if (written != targetLength || !Arrays.equals(targetHash, digest.digest())) {
+                throw new IOException("Delta result does not match the expected content");
+            }
+        }
+    }
+
+    private static Map<Integer, int[]> indexBlocks(MappedByteBuffer b, int length) {
+        Map<Integer, int[]> index = new HashMap<>();
+        for (int offset = 0; offset + BLOCK_SIZE <= length; offset += BLOCK_SIZE) {
+            int weak = checksum(b, offset);
+            int[] previous = index.get(weak);
+            if (previous == null) {
+                index.put(weak, new int[] { offset });
+            } else if (previous.length < 8) {
+                // Limite de candidatos por suma para no degradar con datos repetitivos
+                int[] extended = Arrays.copyOf(previous, previous.length + 1);
+                extended[previous.length] = offset;
+                index.put(weak, extended);
+            }
+        }
+        return index;
+    }
+
+    private static int findMatch(int[] candidates, MappedByteBuffer b, MappedByteBuffer t, int pos) {
+        if (candidates == null) {
+            return -1;
+        }
+        for (int candidate : candidates) {
+            if (b.slice(candidate, BLOCK_SIZE).equals(t.slice(pos, BLOCK_SIZE))) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeLiteral(DataOutputStream dos, MappedByteBuffer t, int from, int to) throws IOException {
+        if (to <= from) {
+            return;
+        }
+        byte[] literal = new byte[to - from];
+        t.get(from, literal);
+        dos.writeByte('A');
+        dos.writeInt(literal.length);
+        dos.write(literal);
+    }
+
+    /**
+     * Suma tipo Adler de un bloque: a = suma de bytes, b = suma ponderada
+     */
+    private static int checksum(MappedByteBuffer buffer, int offset) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            int x = buffer.get(offset + i) & 0xff;
+            a += x;
+            b += (BLOCK_SIZE - i) * x;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    private static int roll(int weak, byte out, byte in) {
+        int a = weak & 0xffff;
+        int b = (weak >>> 16) & 0xffff;
+        int x = out & 0xff;
+        int y = in & 0xff;
+        a = (a - x + y) & 0xffff;
+        b = (b - BLOCK_SIZE * x + a) & 0xffff;
+        return (b << 16) | a;
+    }
+
+    private static byte[] sha256(MappedByteBuffer buffer, int length) {
+        MessageDigest digest = newDigest();
+        digest.update(buffer.slice(0, length));
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
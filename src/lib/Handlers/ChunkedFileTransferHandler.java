@@ -0,0 +1,367 @@
+package lib.Handlers;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import lib.Interfaces.FileTransferHandler;
+import lib.Sync.FileMetadata;
+import lib.Utils.Logger;
+
+/**
+ * Decorador de almacenamiento por trozos: cada archivo se trocea por
+ * contenido, cada trozo se guarda una sola vez en .gitfp-chunks/ con su hash
+ * como nombre, y en la ruta del archivo se sube solo una receta con la lista
+ * de trozos. Al modificar un archivo solo se suben los trozos nuevos y el
+ * historial guarda recetas, no copias completas.
+ *
+ * Va por fuera del resto de la cadena, de modo que trocea el contenido en
+ * claro y cada trozo y receta se encriptan individualmente por debajo.
+ */
+public class ChunkedFileTransferHandler implements FileTransferHandler {
+
+    /**
+     * Almacen de trozos en la raiz del directorio de trabajo remoto. Es un
+     * nombre reservado: Supervisor y Reconciler no sincronizan una carpeta
+     * local con este nombre, para que no se mezcle con los trozos
+     */
+    public static final String CHUNK_DIR = ".gitfp-chunks";
+    private static final String RECIPE_HEADER = "GITFP-CHUNKS 1";
+    private static final String TEMP_DIR = "temp_chunks";
+
+    private final FileTransferHandler baseHandler;
+    private final byte[] idKey;
+    private final Set<String> knownChunks = ConcurrentHashMap.newKeySet();
+    private volatile boolean chunksLoaded = false;
+
+    /**
+     * @param idPassword si no es null, los nombres de los trozos son un HMAC
+     *                   con una clave derivada de ella, para no publicar el
+     *                   hash del contenido en claro
+     */
+    public ChunkedFileTransferHandler(FileTransferHandler baseHandler, String idPassword) {
+        this.baseHandler = baseHandler;
+        this.idKey = idPassword != null ? sha256(("gitfp-chunk-id:" + idPassword).getBytes(StandardCharsets.UTF_8)) : null;
+
+        File tempDir = new File(TEMP_DIR);
+        if (!tempDir.exists()) {
+            tempDir.mkdirs();
+        }
+    }
+
+    @Override
+    public boolean uploadFile(File localFile, String remotePath) throws IOException {
+        File recipe = storeChunks(localFile);
+        if (recipe == null) {
+            return false;
+        }
+        try {
+            return baseHandler.uploadFile(recipe, remotePath);
+        } finally {
+            Files.deleteIfExists(recipe.toPath());
+        }
+    }
+
+    @Override
+    public boolean replaceFile(File localFile, String remotePath) throws IOException {
+        File recipe = storeChunks(localFile);
+        if (recipe == null) {
+            return false;
+        }
+        try {
+            return baseHandler.replaceFile(recipe, remotePath);
+        } finally {
+            Files.deleteIfExists(recipe.toPath());
+        }
+    }
+
+    @Override
+    public boolean replaceFileKeepingVersion(File localFile, String remotePath, File previousVersion)
+            throws IOException {
+        File recipe = storeChunks(localFile);
+        if (recipe == null) {
+            return false;
+        }
+        try {
+            return baseHandler.replaceFileKeepingVersion(recipe, remotePath, previousVersion);
+        } finally {
+            Files.deleteIfExists(recipe.toPath());
+        }
+    }
+
+    /**
+     * Trocea el archivo, sube los trozos que el servidor no tiene y escribe la
+     * receta en un temporal
+     *
+     * @return la receta, o null si algun trozo no se pudo subir
+     */
+    private File storeChunks(File localFile) throws IOException {
+        loadKnownChunks();
+
+        Path recipe = Files.createTempFile(new File(TEMP_DIR).toPath(), "recipe_", ".txt");
+        int total = 0;
+        int uploaded = 0;
+        long uploadedBytes = 0;
+
+        try (InputStream in = new FileInputStream(localFile);
+                BufferedWriter writer = Files.newBufferedWriter(recipe, StandardCharsets.UTF_8)) {
+            writer.write(RECIPE_HEADER);
+            writer.newLine();
+            writer.write(Long.toString(localFile.length()));
+            writer.newLine();
+
+            ContentDefinedChunker chunker = new ContentDefinedChunker(in);
+            byte[] chunk;
+            while ((chunk = chunker.next()) != null) {
+                String id = chunkId(chunk);
+                total++;
+
+                if (!knownChunks.contains(id)) {
+                    if (!uploadChunk(id, chunk)) {
+                        Files.deleteIfExists(recipe);
+                        return null;
+                    }
+                    uploaded++;
+                    uploadedBytes += chunk.length;
+                }
+
+                writer.write(id + " " + chunk.length);
+                writer.newLine();
+            }
+        }
+
+        Logger.info("Chunked " + localFile.getName() + ": " + total + " chunks, " + uploaded + " new ("
+                + uploadedBytes + " bytes uploaded)");
+        return recipe.toFile();
+    }
+
+    private boolean uploadChunk(String id, byte[] chunk) throws IOException {
+        if (!baseHandler.uploadStream(new ByteArrayInputStream(chunk), CHUNK_DIR + "/" + id)) {
+            Logger.error("Failed to upload chunk " + id);
+            return false;
+        }
+        knownChunks.add(id);
+        return true;
+    }
+
+    /**
+     * Lee una vez los trozos que ya hay en el servidor
+     */
+    private void loadKnownChunks() throws IOException {
+        if (chunksLoaded) {
+            return;
+        }
+        synchronized (this) {
+            if (chunksLoaded) {
+                return;
+            }
+            List<String> names = baseHandler.listFiles(CHUNK_DIR);
+            if (names != null) {
+                for (String name : names) {
+                    knownChunks.add(new File(name).getName());
+                }
+            }
+            chunksLoaded = true;
+            Logger.info("Known remote chunks: " + knownChunks.size());
+        }
+    }
+
+    /**
+     * Descarga la receta y reconstruye el archivo a partir de sus trozos.
+     * Los archivos subidos sin trocear se entregan tal cual.
+     */
+    @Override
+    public boolean downloadFile(String remotePath, File localFile) throws IOException {
+        Path temp = Files.createTempFile(new File(TEMP_DIR).toPath(), "download_", ".tmp");
+        try {
+            if (!baseHandler.downloadFile(remotePath, temp.toFile())) {
+                return false;
+            }
+
+            List<String[]> chunks = readRecipe(temp);
+            if (chunks == null) {
+                Files.copy(temp, localFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return true;
+            }
+
+            // Solo se guardan los trozos que se repiten, y solo hasta su
+            // ultimo uso
+            Map<String, Integer> remaining = new HashMap<>();
+            for (String[] chunk : chunks) {
+                remaining.merge(chunk[0], 1, Integer::sum);
+            }
+            Map<String, byte[]> cache = new HashMap<>();
+            try (OutputStream out = new FileOutputStream(localFile)) {
+                for (String[] chunk : chunks) {
+                    String id = chunk[0];
+                    byte[] data = cache.get(id);
+                    if (data == null) {
+                        data = downloadChunk(id);
+                        if (data == null) {
+                            return false;
+                        }
+                    }
+                    int left = remaining.merge(id, -1, Integer::sum);
+                    if (left > 0) {
+                        cache.put(id, data);
+                    } else {
+                        cache.remove(id);
+                    }
+                    out.write(data);
+                }
+            }
+            Logger.info("Rebuilt " + remotePath + " from " + chunks.size() + " chunks");
+            return true;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private byte[] downloadChunk(String id) throws IOException {
+        Path temp = Files.createTempFile(new File(TEMP_DIR).toPath(), "chunk_", ".bin");
+        try {
+            if (!baseHandler.downloadFile(CHUNK_DIR + "/" + id, temp.toFile())) {
+                Logger.error("Missing chunk " + id);
+                return null;
+            }
+            byte[] data = Files.readAllBytes(temp);
+            if (!chunkId(data).equals(id)) {
+                Logger.error("Corrupted chunk " + id);
+                return null;
+            }
+            return data;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @return lista de {id, tamaño}, o null si el archivo no es una receta
+     */
+    private static List<String[]> readRecipe(Path file) throws IOException {
+        try (InputStream in = new FileInputStream(file.toFile())) {
+            byte[] header = in.readNBytes(RECIPE_HEADER.length() + 1);
+            if (!new String(header, StandardCharsets.UTF_8).equals(RECIPE_HEADER + "\n")) {
+                return null;
+            }
+        }
+
+        List<String[]> chunks = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            reader.readLine();
+            reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    chunks.add(line.split(" ", 2));
+                }
+            }
+        }
+        return chunks;
+    }
+
+    private String chunkId(byte[] chunk) {
+        if (idKey == null) {
+            return HexFormat.of().formatHex(sha256(chunk));
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(idKey, "HmacSHA256"));
+            return HexFormat.of().formatHex(mac.doFinal(chunk));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Borra la receta. Los trozos se conservan porque pueden estar
+     * referenciados por otras versiones o archivos.
+     */
+    @Override
+    public boolean deleteFile(String remotePath) throws IOException {
+        return baseHandler.deleteFile(remotePath);
+    }
+
+    /**
+     * Indica si una ruta relativa al directorio de trabajo es el almacen de
+     * trozos o esta dentro de el
+     */
+    public static boolean isChunkStore(String relativePath) {
+        return relativePath.equals(CHUNK_DIR) || relativePath.startsWith(CHUNK_DIR + "/");
+    }
+
+    @Override
+    public boolean deleteFileKeepingVersion(String remotePath) throws IOException {
+        return baseHandler.deleteFileKeepingVersion(remotePath);
+    }
+
+    @Override
+    public List<String> listFiles(String remotePath) throws IOException {
+        List<String> files = baseHandler.listFiles(remotePath);
+        if (files == null || isChunkStore(remotePath)) {
+            return files;
+        }
+        List<String> visible = new ArrayList<>();
+        for (String file : files) {
+            if (!isChunkStore(file)) {
+                visible.add(file);
+            }
+        }
+        return visible;
+    }
+
+    @Override
+    public HashMap<LocalDateTime, File> checkVersions(String fileName) throws IOException {
+        return baseHandler.checkVersions(fileName);
+    }
+
+    @Override
+    public String remoteFingerprint(String remotePath) throws IOException {
+        return baseHandler.remoteFingerprint(remotePath);
+    }
+
+    @Override
+    public Map<String, FileMetadata> listRemoteTree() throws IOException {
+        Map<String, FileMetadata> tree = baseHandler.listRemoteTree();
+        if (tree != null) {
+            tree.keySet().removeIf(ChunkedFileTransferHandler::isChunkStore);
+        }
+        return tree;
+    }
+
+    @Override
+    public String getHandlerName() {
+        return "ChunkedStorage(" + baseHandler.getHandlerName() + ")";
+    }
+}
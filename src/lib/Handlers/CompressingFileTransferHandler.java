@@ -0,0 +1,293 @@
+package lib.Handlers;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import lib.Compression.CompressionCodecs;
+import lib.Interfaces.CompressionCodec;
+import lib.Interfaces.FileTransferHandler;
+import lib.Sync.FileMetadata;
+import lib.Utils.Logger;
+
+/**
+ * Decorador que comprime los archivos antes de pasarlos al siguiente
+ * manejador. Va por encima de la encriptacion, ya que el texto cifrado no se
+ * puede comprimir.
+ *
+ * Los archivos comprimidos empiezan con la cabecera "GFPZ", la version del
+ * formato, el id del codec y el tamaño original. Los archivos que ya vienen
+ * comprimidos (por extension o porque una muestra de sus bytes tiene entropia
+ * alta) y los que no se reducen se suben tal cual, sin cabecera.
+ */
+public class CompressingFileTransferHandler implements FileTransferHandler {
+
+    private static final byte[] MAGIC = "GFPZ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte FORMAT_VERSION = 1;
+    private static final String TEMP_DIR = "temp_compress";
+
+    /**
+     * Formatos que ya van comprimidos
+     */
+    private static final Set<String> SKIP_EXTENSIONS = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "jar",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "mp4", "m4a", "aac", "ogg", "flac", "mkv", "avi", "mov", "webm",
+            "pdf", "docx", "xlsx", "pptx", "odt", "ods", "epub", "enc");
+
+    /**
+     * Por debajo de este tamaño la cabecera y el coste no compensan
+     */
+    private static final long MIN_SIZE = 256;
+
+    private static final int SAMPLE_SIZE = 4096;
+    private static final double MAX_ENTROPY_BITS = 7.5;
+
+    private final FileTransferHandler baseHandler;
+    private final CompressionCodec codec;
+
+    public CompressingFileTransferHandler(FileTransferHandler baseHandler, CompressionCodec codec) {
+        this.baseHandler = baseHandler;
+        this.codec = codec;
+
+        File tempDir = new File(TEMP_DIR);
+        if (!tempDir.exists()) {
+            tempDir.mkdirs();
+        }
+    }
+
+    @Override
+    public boolean uploadFile(File localFile, String remotePath) throws IOException {
+        File compressed = compress(localFile, remotePath);
+        try {
+            return baseHandler.uploadFile(compressed != null ? compressed : localFile, remotePath);
+        } finally {
+            deleteTemp(compressed);
+        }
+    }
+
+    @Override
+    public boolean replaceFile(File localFile, String remotePath) throws IOException {
+        File compressed = compress(localFile, remotePath);
+        try {
+            return baseHandler.replaceFile(compressed != null ? compressed : localFile, remotePath);
+        } finally {
+            deleteTemp(compressed);
+        }
+    }
+
+    @Override
+    public boolean replaceFileKeepingVersion(File localFile, String remotePath, File previousVersion)
+            throws IOException {
+        File compressed = compress(localFile, remotePath);
+        File compressedVersion = compress(previousVersion, remotePath);
+        try {
+            return baseHandler.replaceFileKeepingVersion(compressed != null ? compressed : localFile, remotePath,
+                    compressedVersion != null ? compressedVersion : previousVersion);
+        } finally {
+            deleteTemp(compressed);
+            deleteTemp(compressedVersion);
+        }
+    }
+
+    /**
+     * Comprime el archivo en un temporal
+     *
+     * @return el temporal, o null si el archivo debe subirse sin comprimir
+     */
+    private File compress(File localFile, String remotePath) throws IOException {
+        long size = localFile.length();
+        if (size < MIN_SIZE || isSkippedExtension(remotePath) || looksCompressed(localFile)) {
+            return null;
+        }
+
+        Path temp = Files.createTempFile(new File(TEMP_DIR).toPath(), "compress_", ".gfpz");
+        try (InputStream in = new FileInputStream(localFile);
+                DataOutputStream header = new DataOutputStream(new FileOutputStream(temp.toFile()))) {
+            header.write(MAGIC);
+            header.writeByte(FORMAT_VERSION);
+            header.writeByte(codec.getId());
+            header.writeLong(size);
+            header.flush();
+
+            // El codec cierra el flujo del archivo al terminar
+            try (OutputStream out = codec.compress(header)) {
+                in.transferTo(out);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        long compressedSize = Files.size(temp);
+        if (compressedSize >= size) {
+            Files.deleteIfExists(temp);
+            return null;
+        }
+        Logger.info("Compressed " + remotePath + " with " + codec.getName() + ": " + size + " -> "
+                + compressedSize + " bytes");
+        return temp.toFile();
+    }
+
+    private static boolean isSkippedExtension(String remotePath) {
+        String name = new File(remotePath).getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && SKIP_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Mide la entropia de unas muestras del principio, el medio y el final del
+     * archivo. Cerca de 8 bits por byte indica datos ya comprimidos o cifrados.
+     */
+    private static boolean looksCompressed(File file) throws IOException {
+        long size = file.length();
+        long[] offsets = size <= 3L * SAMPLE_SIZE
+                ? new long[] { 0 }
+                : new long[] { 0, size / 2 - SAMPLE_SIZE / 2, size - SAMPLE_SIZE };
+
+        int[] counts = new int[256];
+        int total = 0;
+        byte[] sample = new byte[SAMPLE_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            for (long offset : offsets) {
+                raf.seek(offset);
+                int read = raf.read(sample);
+                for (int i = 0; i < read; i++) {
+                    counts[sample[i] & 0xff]++;
+                }
+                total += Math.max(read, 0);
+            }
+        }
+        if (total == 0) {
+            return false;
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / total;
+                entropy -= p * Math.log(p) / Math.log(2);
+            }
+        }
+        return entropy > MAX_ENTROPY_BITS;
+    }
+
+    /**
+     * Descarga el archivo y lo descomprime si lleva la cabecera de compresion.
+     * Los archivos subidos sin comprimir se entregan tal cual.
+     */
+    @Override
+    public boolean downloadFile(String remotePath, File localFile) throws IOException {
+        Path temp = Files.createTempFile(new File(TEMP_DIR).toPath(), "download_", ".tmp");
+        try {
+            if (!baseHandler.downloadFile(remotePath, temp.toFile())) {
+                return false;
+            }
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(temp.toFile())))) {
+                CompressionCodec fileCodec = readHeader(in);
+                if (fileCodec == null) {
+                    Files.copy(temp, localFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    return true;
+                }
+
+                long expected = in.readLong();
+                long written;
+                try (InputStream decompressed = fileCodec.decompress(in);
+                        OutputStream out = new FileOutputStream(localFile)) {
+                    written = decompressed.transferTo(out);
+                }
+                if (written != expected) {
+                    Logger.error("Decompressed size mismatch for " + remotePath + ": expected " + expected
+                            + ", got " + written);
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Lee la cabecera si la hay
+     *
+     * @return el codec del archivo, o null si no esta comprimido
+     */
+    private static CompressionCodec readHeader(DataInputStream in) throws IOException {
+        in.mark(MAGIC.length + 2);
+        byte[] magic = in.readNBytes(MAGIC.length);
+        if (Arrays.equals(magic, MAGIC)) {
+            int version = in.read();
+            int id = in.read();
+            CompressionCodec fileCodec = id >= 0 ? CompressionCodecs.byId((byte) id) : null;
+            if (version == FORMAT_VERSION && fileCodec != null) {
+                return fileCodec;
+            }
+            if (version == FORMAT_VERSION) {
+                throw new IOException("Unknown compression codec id: " + id);
+            }
+        }
+        in.reset();
+        return null;
+    }
+
+    private static void deleteTemp(File file) throws IOException {
+        if (file != null) {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Override
+    public boolean deleteFile(String remotePath) throws IOException {
+        return baseHandler.deleteFile(remotePath);
+    }
+
+    @Override
+    public boolean deleteFileKeepingVersion(String remotePath) throws IOException {
+        return baseHandler.deleteFileKeepingVersion(remotePath);
+    }
+
+    @Override
+    public List<String> listFiles(String remotePath) throws IOException {
+        return baseHandler.listFiles(remotePath);
+    }
+
+    @Override
+    public HashMap<LocalDateTime, File> checkVersions(String fileName) throws IOException {
+        return baseHandler.checkVersions(fileName);
+    }
+
+    @Override
+    public String remoteFingerprint(String remotePath) throws IOException {
+        return baseHandler.remoteFingerprint(remotePath);
+    }
+
+    @Override
+    public Map<String, FileMetadata> listRemoteTree() throws IOException {
+        return baseHandler.listRemoteTree();
+    }
+
+    @Override
+    public String getHandlerName() {
+        return "Compressing(" + codec.getName() + ", " + baseHandler.getHandlerName() + ")";
+    }
+}
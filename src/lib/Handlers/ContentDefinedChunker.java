@@ -0,0 +1,86 @@
+package lib.Handlers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Troceado por contenido (CDC) con un hash rodante tipo Gear: los cortes
+ * dependen de los bytes y no de su posicion, asi que insertar o borrar datos
+ * solo cambia los trozos de alrededor y el resto se reutiliza.
+ */
+public class ContentDefinedChunker {
+
+    public static final int MIN_CHUNK = 16 * 1024;
+    public static final int MAX_CHUNK = 256 * 1024;
+
+    /**
+     * Con 16 bits a cero el tamaño medio ronda los 64 KB. Se miran los bits
+     * altos: con el desplazamiento del Gear el bit k solo depende de los
+     * ultimos k+1 bytes, y los bajos darian una ventana de apenas 16 bytes.
+     */
+    private static final long CUT_MASK = ((1L << 16) - 1) << 48;
+
+    /**
+     * Tabla fija: la misma semilla en todos los clientes garantiza los mismos cortes
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x6769746670L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[MAX_CHUNK];
+    private int buffered = 0;
+    private boolean eof = false;
+
+    public ContentDefinedChunker(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Devuelve el siguiente trozo, o null al final del flujo
+     */
+    public byte[] next() throws IOException {
+        fill();
+        if (buffered == 0) {
+            return null;
+        }
+
+        int cut = findCut();
+        byte[] chunk = Arrays.copyOf(buffer, cut);
+        System.arraycopy(buffer, cut, buffer, 0, buffered - cut);
+        buffered -= cut;
+        return chunk;
+    }
+
+    private void fill() throws IOException {
+        while (!eof && buffered < buffer.length) {
+            int read = in.read(buffer, buffered, buffer.length - buffered);
+            if (read == -1) {
+                eof = true;
+            } else {
+                buffered += read;
+            }
+        }
+    }
+
+    private int findCut() {
+        if (buffered <= MIN_CHUNK) {
+            return buffered;
+        }
+        long hash = 0;
+        for (int i = MIN_CHUNK; i < buffered; i++) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+            if ((hash & CUT_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return buffered;
+    }
+}
@@ -0,0 +1,282 @@
+package lib.Handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import lib.Interfaces.FileTransferHandler;
+import lib.Sync.FileMetadata;
+import lib.Utils.Logger;
+
+/**
+ * Decorador de historial por deltas: al reemplazar un archivo, la version
+ * anterior se guarda en history/ como delta binario contra la nueva en vez de
+ * como copia completa. Cada cierto numero de versiones se guarda una copia
+ * completa (keyframe) para acotar el coste de reconstruir versiones antiguas.
+ *
+ * Para calcular el delta sin descargar nada se mantiene en .gitfp/base una
+ * copia local de lo ultimo que se subio de cada archivo, junto con la huella
+ * (remoteFingerprint) que tenia la copia remota al subirlo.
+ */
+public class DeltaHistoryFileTransferHandler implements FileTransferHandler {
+
+    private static final Path BASE_DIR = Paths.get(".gitfp", "base");
+    private static final String TEMP_DIR = "temp_delta";
+
+    private final FileTransferHandler baseHandler;
+    private final int keyframeInterval;
+
+    /**
+     * @param keyframeInterval cada cuantas versiones se guarda una copia completa
+     */
+    public DeltaHistoryFileTransferHandler(FileTransferHandler baseHandler, int keyframeInterval) {
+        this.baseHandler = baseHandler;
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+
+        File tempDir = new File(TEMP_DIR);
+        if (!tempDir.exists()) {
+            tempDir.mkdirs();
+        }
+    }
+
+    @Override
+    public boolean uploadFile(File localFile, String remotePath) throws IOException {
+        boolean success = baseHandler.uploadFile(localFile, remotePath);
+        if (success) {
+            updateBase(localFile, remotePath, 0);
+        }
+        return success;
+    }
+
+    @Override
+    public boolean replaceFile(File localFile, String remotePath) throws IOException {
+        Path base = basePath(remotePath);
+        int deltas = readDeltaCount(remotePath);
+
+        if (Files.exists(base) && deltas + 1 < keyframeInterval
+                && localFile.length() <= BinaryDelta.MAX_FILE_SIZE && Files.size(base) <= BinaryDelta.MAX_FILE_SIZE
+                && remoteMatchesBase(remotePath)) {
+
+            // Snapshot del archivo nuevo: el delta y la subida deben ver los mismos bytes
+            Path current = Files.createTempFile(Paths.get(TEMP_DIR), "current_", ".bin");
+            Path delta = Files.createTempFile(Paths.get(TEMP_DIR), "delta_", ".bin");
+            try {
+                Files.copy(localFile.toPath(), current, StandardCopyOption.REPLACE_EXISTING);
+                BinaryDelta.encode(current.toFile(), base.toFile(), delta.toFile());
+
+                if (Files.size(delta) < Files.size(base)) {
+                    Logger.info("Storing previous version of " + remotePath + " as a " + Files.size(delta)
+                            + " byte delta (" + Files.size(base) + " bytes full)");
+                    boolean success = baseHandler.replaceFileKeepingVersion(current.toFile(), remotePath,
+                            delta.toFile());
+                    if (success) {
+                        updateBase(current.toFile(), remotePath, deltas + 1);
+                    }
+                    return success;
+                }
+            } finally {
+                Files.deleteIfExists(current);
+                Files.deleteIfExists(delta);
+            }
+        }
+
+        // Keyframe: la version anterior se mueve entera al historial
+        boolean success = baseHandler.replaceFile(localFile, remotePath);
+        if (success) {
+            updateBase(localFile, remotePath, 0);
+        }
+        return success;
+    }
+
+    /**
+     * Si la copia remota sigue siendo la que se subio desde aqui (la base).
+     * Si otro cliente o una accion del menu la ha cambiado, guardar la base
+     * como version anterior perderia ese contenido: se hace un keyframe, que
+     * mueve al historial la copia remota real.
+     */
+    private boolean remoteMatchesBase(String remotePath) throws IOException {
+        String expected;
+        try {
+            expected = Files.readString(fingerprintPath(remotePath), StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            return false;
+        }
+        if (expected.equals(baseHandler.remoteFingerprint(remotePath))) {
+            return true;
+        }
+        Logger.warning("Remote copy of " + remotePath + " changed since it was last uploaded from here, "
+                + "storing it whole in history");
+        return false;
+    }
+
+    @Override
+    public boolean replaceFileKeepingVersion(File localFile, String remotePath, File previousVersion)
+            throws IOException {
+        boolean success = baseHandler.replaceFileKeepingVersion(localFile, remotePath, previousVersion);
+        if (success) {
+            updateBase(localFile, remotePath, 0);
+        }
+        return success;
+    }
+
+    /**
+     * Descarga un archivo. Si es una version guardada como delta, reconstruye
+     * antes la version siguiente (o la actual) y aplica el delta sobre ella.
+     */
+    @Override
+    public boolean downloadFile(String remotePath, File localFile) throws IOException {
+        Path temp = Files.createTempFile(Paths.get(TEMP_DIR), "download_", ".tmp");
+        try {
+            if (!baseHandler.downloadFile(remotePath, temp.toFile())) {
+                return false;
+            }
+            if (!BinaryDelta.isDelta(temp.toFile())) {
+                Files.copy(temp, localFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return true;
+            }
+
+            String successor = successorOf(remotePath);
+            if (successor == null) {
+                Logger.error("Cannot find the version a delta was computed against: " + remotePath);
+                return false;
+            }
+
+            Path successorFile = Files.createTempFile(Paths.get(TEMP_DIR), "base_", ".tmp");
+            try {
+                if (!downloadFile(successor, successorFile.toFile())) {
+                    return false;
+                }
+                BinaryDelta.apply(successorFile.toFile(), temp.toFile(), localFile);
+                Logger.info("Rebuilt " + remotePath + " from " + successor);
+                return true;
+            } finally {
+                Files.deleteIfExists(successorFile);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * La version inmediatamente posterior a una entrada del historial, o el
+     * archivo actual si es la mas reciente
+     */
+    private String successorOf(String remotePath) throws IOException {
+        String historyPrefix = "history/";
+        if (!remotePath.startsWith(historyPrefix)) {
+            return null;
+        }
+        VersionIndex.Version version = VersionIndex.parse(remotePath.substring(historyPrefix.length()));
+        if (version == null) {
+            return null;
+        }
+
+        HashMap<LocalDateTime, File> versions = baseHandler.checkVersions(version.baseName());
+        if (versions == null) {
+            return null;
+        }
+        Map.Entry<LocalDateTime, File> next = new TreeMap<>(versions).higherEntry(version.dateTime());
+        if (next == null) {
+            return version.baseName();
+        }
+        return historyPrefix + next.getValue().getPath().replace(File.separatorChar, '/');
+    }
+
+    private void updateBase(File content, String remotePath, int deltas) {
+        try {
+            Path base = basePath(remotePath);
+            Files.createDirectories(base.getParent());
+            Files.copy(content.toPath(), base, StandardCopyOption.REPLACE_EXISTING);
+            Files.writeString(countPath(remotePath), Integer.toString(deltas), StandardCharsets.UTF_8);
+            String fingerprint = baseHandler.remoteFingerprint(remotePath);
+            if (fingerprint != null) {
+                Files.writeString(fingerprintPath(remotePath), fingerprint, StandardCharsets.UTF_8);
+            } else {
+                Files.deleteIfExists(fingerprintPath(remotePath));
+            }
+        } catch (IOException e) {
+            Logger.warning("Could not update local delta base for " + remotePath + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(basePath(remotePath));
+            } catch (IOException ignored) {
+                // Sin base la proxima version sera un keyframe
+            }
+        }
+    }
+
+    private int readDeltaCount(String remotePath) {
+        try {
+            return Integer.parseInt(Files.readString(countPath(remotePath), StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Path basePath(String remotePath) {
+        return BASE_DIR.resolve(remotePath);
+    }
+
+    private static Path countPath(String remotePath) {
+        return BASE_DIR.resolve(remotePath + ".deltas");
+    }
+
+    private static Path fingerprintPath(String remotePath) {
+        return BASE_DIR.resolve(remotePath + ".remote");
+    }
+
+    /**
+     * Las versiones mas recientes del historial pueden ser deltas contra la
+     * copia remota actual, asi que en lugar de borrarla se mueve al historial
+     * como keyframe. Sin ella no se podrian reconstruir, y si la ruta se
+     * volviera a crear se aplicarian sobre un contenido que no es el suyo.
+     */
+    @Override
+    public boolean deleteFile(String remotePath) throws IOException {
+        boolean success = baseHandler.deleteFileKeepingVersion(remotePath);
+        if (success) {
+            Files.deleteIfExists(basePath(remotePath));
+            Files.deleteIfExists(countPath(remotePath));
+            Files.deleteIfExists(fingerprintPath(remotePath));
+        }
+        return success;
+    }
+
+    @Override
+    public boolean deleteFileKeepingVersion(String remotePath) throws IOException {
+        return deleteFile(remotePath);
+    }
+
+    @Override
+    public List<String> listFiles(String remotePath) throws IOException {
+        return baseHandler.listFiles(remotePath);
+    }
+
+    @Override
+    public HashMap<LocalDateTime, File> checkVersions(String fileName) throws IOException {
+        return baseHandler.checkVersions(fileName);
+    }
+
+    @Override
+    public String remoteFingerprint(String remotePath) throws IOException {
+        return baseHandler.remoteFingerprint(remotePath);
+    }
+
+    @Override
+    public Map<String, FileMetadata> listRemoteTree() throws IOException {
+        return baseHandler.listRemoteTree();
+    }
+
+    @Override
+    public String getHandlerName() {
+        return "DeltaHistory(" + baseHandler.getHandlerName() + ")";
+    }
+}
@@ -1,15 +1,25 @@
 package lib.Handlers;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
+import java.security.GeneralSecurityException;
 import java.time.LocalDateTime;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 
 import lib.Interfaces.FileTransferHandler;
 import lib.Security.CrossAppEncryption;
+import lib.Security.DecryptingOutputStream;
+import lib.Sync.FileMetadata;
 import lib.Utils.Logger;
 
 /**
@@ -19,88 +29,128 @@ public class EncryptedFileTransferHandler implements FileTransferHandler {
 
     private final FileTransferHandler baseHandler;
     private final String encryptionPassword;
-    private static final String TEMP_DIR = "temp_encrypted";
 
     public EncryptedFileTransferHandler(FileTransferHandler baseHandler, String encryptionPassword) {
         this.baseHandler = baseHandler;
         this.encryptionPassword = encryptionPassword;
-
-        File tempDir = new File(TEMP_DIR);
-        if (!tempDir.exists()) {
-            tempDir.mkdirs();
-        }
-
     }
 
     @Override
     public boolean uploadFile(File localFile, String remotePath) throws IOException {
-        /**
-         * Desde la factoria, el baseHandler se le da a este Encrypted File Transfer
-         * Handler, y usa
-         * el upload de su propio "baseHandler" para subir el archivo encriptado, del
-         * Standard.
-         */
+        try (FileInputStream in = new FileInputStream(localFile)) {
+            return uploadStream(in, remotePath);
+        }
+    }
 
+    /**
+     * Desde la factoria, el baseHandler se le da a este Encrypted File Transfer
+     * Handler, y usa el upload de su propio "baseHandler" para subir el flujo
+     * encriptado. Se cifra a medida que se envia, sin copia encriptada en disco.
+     */
+    @Override
+    public boolean uploadStream(InputStream in, String remotePath) throws IOException {
         try {
-
-            File encryptedFile = new File(TEMP_DIR, localFile.getName() + ".enc");
-
-            CrossAppEncryption.encryptFile(localFile, encryptedFile, encryptionPassword);
-            Logger.info("Encrypted file for upload: " + localFile.getName());
-
-            /**
-             * El remota path contiene tambien el nombre del archivo, por lo que el archivo
-             * encriptado
-             * se sube con el nombre del archivo original.
-             */
-            boolean success = baseHandler.uploadFile(encryptedFile, remotePath);
-
-            Files.deleteIfExists(encryptedFile.toPath());
-
-            return success;
-        } catch (Exception e) {
+            InputStream encrypted = CrossAppEncryption.encryptStream(in, encryptionPassword);
+            Logger.info("Encrypting file for upload: " + remotePath);
+            return baseHandler.uploadStream(encrypted, remotePath);
+        } catch (GeneralSecurityException e) {
             Logger.error("Error uploading encrypted file: " + e.getMessage());
             return false;
         }
     }
 
+    /**
+     * Cifra cada miembro por separado, para que cada uno se pueda descargar y
+     * descifrar sin el resto del lote
+     */
     @Override
-    public boolean replaceFile(File localFile, String remotePath) throws IOException {
+    public Set<String> uploadBatch(Map<String, InputStream> members) throws IOException {
+        Map<String, InputStream> encrypted = new LinkedHashMap<>();
         try {
+            for (Map.Entry<String, InputStream> member : members.entrySet()) {
+                encrypted.put(member.getKey(), CrossAppEncryption.encryptStream(member.getValue(), encryptionPassword));
+            }
+        } catch (GeneralSecurityException e) {
+            Logger.error("Error encrypting batch for upload: " + e.getMessage());
+            return Set.of();
+        }
+        Logger.info("Encrypting " + encrypted.size() + " files for batch upload");
+        return baseHandler.uploadBatch(encrypted);
+    }
 
-            File encryptedFile = new File(TEMP_DIR, localFile.getName() + ".enc");
-
-            try {
-
-                CrossAppEncryption.encryptFile(localFile, encryptedFile, encryptionPassword);
-                Logger.info("Encrypted file for replace operation: " + localFile.getName());
-
-                boolean success = baseHandler.replaceFile(encryptedFile, remotePath);
+    @Override
+    public boolean replaceFile(File localFile, String remotePath) throws IOException {
+        try (FileInputStream in = new FileInputStream(localFile)) {
+            return replaceStream(in, remotePath, null);
+        }
+    }
 
-                return success;
-            } catch (Exception e) {
-                Logger.error("Error encrypting file for replacement: " + e.getMessage());
-                return false;
-            } finally {
+    @Override
+    public boolean replaceFileKeepingVersion(File localFile, String remotePath, File previousVersion)
+            throws IOException {
+        try (FileInputStream in = new FileInputStream(localFile);
+                FileInputStream previous = new FileInputStream(previousVersion)) {
+            return replaceStream(in, remotePath, previous);
+        }
+    }
 
-                Files.deleteIfExists(encryptedFile.toPath());
-            }
-        } catch (Exception e) {
-            Logger.error("Error in replaceFile operation: " + e.getMessage());
+    @Override
+    public boolean replaceStream(InputStream in, String remotePath, InputStream previousVersion)
+            throws IOException {
+        try {
+            InputStream encrypted = CrossAppEncryption.encryptStream(in, encryptionPassword);
+            InputStream encryptedVersion = previousVersion != null
+                    ? CrossAppEncryption.encryptStream(previousVersion, encryptionPassword)
+                    : null;
+            Logger.info("Encrypting file for replace operation: " + remotePath);
+            return baseHandler.replaceStream(encrypted, remotePath, encryptedVersion);
+        } catch (GeneralSecurityException e) {
+            Logger.error("Error encrypting file for replacement: " + e.getMessage());
             return false;
         }
     }
 
-        @Override
+    @Override
     public List<String> listFiles(String remotePath) throws IOException {
 
         return baseHandler.listFiles(remotePath);
         
     }
 
+    /**
+     * Descarga el archivo desencriptandolo a medida que llega, directamente en
+     * localFile. Si el archivo remoto no esta encriptado se entrega tal cual.
+     */
     @Override
     public boolean downloadFile(String remotePath, File localFile) throws IOException {
-        return baseHandler.downloadFile(remotePath, localFile);
+        boolean success = false;
+        try (FileOutputStream out = new FileOutputStream(localFile)) {
+            success = downloadStream(remotePath, out);
+            return success;
+        } finally {
+            if (!success) {
+                // No dejar a medias un archivo que no se ha podido verificar
+                Files.deleteIfExists(localFile.toPath());
+            }
+        }
+    }
+
+    @Override
+    public boolean downloadStream(String remotePath, OutputStream out) throws IOException {
+        DecryptingOutputStream decrypting = CrossAppEncryption.decryptStream(out, encryptionPassword);
+        if (!baseHandler.downloadStream(remotePath, decrypting)) {
+            return false;
+        }
+        try {
+            decrypting.finish();
+        } catch (IOException e) {
+            Logger.error("Error decrypting file " + remotePath + ": " + e.getMessage());
+            return false;
+        }
+        if (!decrypting.isEncrypted()) {
+            Logger.info("File is not encrypted, using as is: " + remotePath);
+        }
+        return true;
     }
 
     @Override
@@ -108,6 +158,11 @@ public class EncryptedFileTransferHandler implements FileTransferHandler {
         return baseHandler.deleteFile(remotePath);
     }
 
+    @Override
+    public boolean deleteFileKeepingVersion(String remotePath) throws IOException {
+        return baseHandler.deleteFileKeepingVersion(remotePath);
+    }
+
     @Override
     public String getHandlerName() {
         return "EncryptedTransfer(" + baseHandler.getHandlerName() + ")";
@@ -118,6 +173,16 @@ public class EncryptedFileTransferHandler implements FileTransferHandler {
         return baseHandler.checkVersions(fileName);
     }
 
+    @Override
+    public String remoteFingerprint(String remotePath) throws IOException {
+        return baseHandler.remoteFingerprint(remotePath);
+    }
+
+    @Override
+    public Map<String, FileMetadata> listRemoteTree() throws IOException {
+        return baseHandler.listRemoteTree();
+    }
+
 
     
 }
\ No newline at end of file
@@ -0,0 +1,640 @@
+package lib.Handlers;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import lib.Connection.FTPConnectionPool;
+import lib.Sync.FileMetadata;
+import lib.Utils.Logger;
+
+/**
+ * Manifiesto remoto: un archivo pequeño junto al directorio de trabajo con la
+ * ruta, tamaño, hash y fecha de cada archivo y la lista de versiones del
+ * historial. Con el, listar archivos y versiones cuesta una sola descarga en
+ * lugar de recorrer directorios grandes con LIST.
+ *
+ * Es un log de lineas de texto. Cada operacion se aplica al momento en
+ * memoria y su linea espera en un buffer; las lineas se añaden en grupo con
+ * un solo APPE, cuando se juntan FLUSH_LINES o como mucho FLUSH_DELAY_MILLIS
+ * despues. Cuando hay demasiadas lineas obsoletas se reescribe entero
+ * subiendolo a un temporal y renombrandolo.
+ *
+ * Otros clientes escriben en el mismo log, asi que cada cierto tiempo se
+ * compara su tamaño con el que deberia tener y, si no coincide, se vuelve a
+ * cargar.
+ * <pre>
+ * F	tamaño	fecha	sha256	ruta      archivo subido
+ * D	ruta                              archivo borrado
+ * V	nombre-en-history                 version movida al historial
+ * B	tamaño	fecha	sha256	lote	offset	ruta
+ *                                    archivo guardado dentro de un lote
+ * </pre>
+ */
+public class RemoteManifest {
+
+    public static final String MANIFEST_NAME = ".gitfp-manifest";
+    private static final String HEADER = "GITFP-MANIFEST 1";
+    private static final int COMPACT_MIN_LINES = 1000;
+    private static final int COMPACT_ATTEMPTS = 3;
+    private static final int FLUSH_LINES = 100;
+    private static final long FLUSH_DELAY_MILLIS = 1000;
+    private static final long REPLACE_WAIT_MILLIS = 500;
+
+    /**
+     * Escribe en segundo plano las lineas que no han llegado a FLUSH_LINES
+     */
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ManifestFlush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Manifiestos con lineas en el buffer, para vaciarlos al salir
+     */
+    private static final Set<RemoteManifest> INSTANCES = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<>()));
+
+    /**
+     * Estado de un archivo remoto segun el manifiesto
+     *
+     * @param batch  ruta del lote que contiene el archivo, o null si esta
+     *               guardado como archivo propio
+     * @param offset posicion del archivo dentro del lote
+     */
+    public record Entry(long size, long modified, String hash, String batch, long offset) {
+
+        public Entry(long size, long modified, String hash) {
+            this(size, modified, hash, null, 0);
+        }
+
+        public boolean isBatched() {
+            return batch != null;
+        }
+    }
+
+    private final Map<String, Entry> files = new ConcurrentHashMap<>();
+    private final VersionIndex versionIndex;
+    private final long refreshNanos;
+    private volatile boolean loaded = false;
+    private int lineCount = 0;
+
+    /**
+     * Tamaño que deberia tener el log remoto segun lo leido y escrito por
+     * este cliente, y cuando se comprobo por ultima vez
+     */
+    private volatile long remoteLength = -1;
+    private volatile long lastRefresh;
+
+    /**
+     * Lineas ya aplicadas en memoria que aun no estan en el servidor
+     */
+    private final List<String> pending = new ArrayList<>();
+    private String pendingPath;
+    private boolean flushScheduled = false;
+
+    /**
+     * Un solo APPE o reescritura a la vez, para que no se intercalen lineas.
+     * Nadie espera por el para registrar una operacion.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * @param refreshMillis cada cuanto se comprueba si otro cliente ha
+     *                      cambiado el manifiesto
+     */
+    public RemoteManifest(VersionIndex versionIndex, long refreshMillis) {
+        this.versionIndex = versionIndex;
+        this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshMillis);
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Si ya toca comprobar si el manifiesto ha cambiado en el servidor
+     */
+    public boolean isRefreshDue() {
+        return System.nanoTime() - lastRefresh >= refreshNanos;
+    }
+
+    /**
+     * Descarga y aplica el manifiesto. Las lineas propias que aun no se han
+     * escrito se vuelven a aplicar encima.
+     *
+     * Solo se considera que no existe ante un 550; cualquier otro fallo, o una
+     * cabecera desconocida (un formato mas nuevo), es un error, para que nadie
+     * lo regenere y sobrescriba lo que han escrito otros clientes.
+     *
+     * @return false si no existe en el servidor
+     */
+    public synchronized boolean load(FTPClient ftpClient, String manifestPath) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        for (int attempt = 0; !ftpClient.retrieveFile(manifestPath, buffer); attempt++) {
+            if (ftpClient.getReplyCode() != FTPReply.FILE_UNAVAILABLE) {
+                throw new IOException("Failed to read manifest: " + ftpClient.getReplyString());
+            }
+            // Sin el manifiesto pero con su temporal, otro cliente esta a
+            // mitad de reemplazarlo (borrar y renombrar)
+            String tempPath = manifestPath + ".tmp";
+            if (ftpClient.getSize(tempPath) == null) {
+                return false;
+            }
+            if (attempt >= COMPACT_ATTEMPTS) {
+                throw new IOException("Manifest is missing but " + tempPath
+                        + " exists; another client may be replacing it, remove it if it is stale");
+            }
+            buffer.reset();
+            try {
+                Thread.sleep(REPLACE_WAIT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the manifest", e);
+            }
+        }
+
+        Map<String, Entry> current = new HashMap<>();
+        int lines = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(buffer.toByteArray()), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Unrecognized manifest header, leaving the manifest untouched: " + line);
+            }
+            while ((line = reader.readLine()) != null) {
+                apply(line, current, versionIndex::add);
+                lines++;
+            }
+        }
+        synchronized (pending) {
+            for (String line : pending) {
+                apply(line, current, versionIndex::add);
+            }
+        }
+
+        // Sin vaciar el mapa: quien lo lea mientras tanto no debe verlo vacio
+        files.keySet().retainAll(current.keySet());
+        files.putAll(current);
+        lineCount = lines;
+        remoteLength = buffer.size();
+        lastRefresh = System.nanoTime();
+        loaded = true;
+        versionIndex.markLoaded();
+        Logger.info("Manifest loaded: " + files.size() + " files, " + versionIndex.size() + " versions");
+        return true;
+    }
+
+    /**
+     * Vuelve a cargar el manifiesto si otro cliente lo ha cambiado. Como
+     * mucho una vez cada refreshMillis se pide su tamaño con SIZE y se compara
+     * con el que deberia tener; si el servidor no soporta SIZE se recarga sin
+     * mas. Si ha desaparecido se vuelve a escribir con lo que hay en memoria.
+     */
+    public void refresh(FTPClient ftpClient, String manifestPath) throws IOException {
+        if (!isRefreshDue()) {
+            return;
+        }
+        // Sin escrituras propias a medias, para que el tamaño sea el esperado
+        writeLock.lock();
+        try {
+            if (!isRefreshDue()) {
+                return;
+            }
+            lastRefresh = System.nanoTime();
+            long size = remoteSize(ftpClient, manifestPath, -1);
+            if (size >= 0 && size == remoteLength) {
+                return;
+            }
+            Logger.info("Manifest changed on the server, reloading it");
+            if (!load(ftpClient, manifestPath)) {
+                Logger.warning("Manifest disappeared from the server, writing it again");
+                rewrite(ftpClient, manifestPath);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sustituye el contenido en memoria por el de un recorrido completo del servidor
+     *
+     * @param batched miembros leidos de los indices de los lotes. Un archivo
+     *                propio con la misma ruta es posterior al lote (subir un
+     *                lote mueve antes al historial los archivos que
+     *                reemplaza), asi que prevalece.
+     */
+    public synchronized void reset(Map<String, FileMetadata> tree, Map<String, Entry> batched) {
+        files.clear();
+        files.putAll(batched);
+        for (FileMetadata file : tree.values()) {
+            files.put(file.path(), new Entry(file.size(), file.modified(), "-"));
+        }
+        loaded = true;
+    }
+
+    private static void apply(String line, Map<String, Entry> files, Consumer<String> versions) {
+        String[] parts = line.split("\t", 5);
+        try {
+            switch (parts[0]) {
+                case "F":
+                    if (parts.length == 5) {
+                        files.put(parts[4], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]));
+                    }
+                    break;
+                case "B":
+                    String[] member = line.split("\t", 7);
+                    if (member.length == 7) {
+                        files.put(member[6], new Entry(Long.parseLong(member[1]), Long.parseLong(member[2]),
+                                member[3], member[4], Long.parseLong(member[5])));
+                    }
+                    break;
+                case "D":
+                    if (parts.length == 2) {
+                        files.remove(parts[1]);
+                    }
+                    break;
+                case "V":
+                    if (parts.length == 2) {
+                        versions.accept(parts[1]);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            // Linea incompleta de una escritura interrumpida
+        }
+    }
+
+    public void recordFile(FTPClient ftpClient, String manifestPath, String path, long size, long modified,
+            String hash) {
+        Entry entry = new Entry(size, modified, hash);
+        files.put(path, entry);
+        append(ftpClient, manifestPath, line(path, entry));
+    }
+
+    /**
+     * Registra con un solo APPE todos los archivos guardados en un lote
+     *
+     * @param members ruta -> entrada, con el lote y el offset de cada una
+     */
+    public void recordBatch(FTPClient ftpClient, String manifestPath, Map<String, Entry> members) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Entry> member : members.entrySet()) {
+            files.put(member.getKey(), member.getValue());
+            lines.add(line(member.getKey(), member.getValue()));
+        }
+        append(ftpClient, manifestPath, lines.toArray(new String[0]));
+    }
+
+    public void recordDelete(FTPClient ftpClient, String manifestPath, String path) {
+        files.remove(path);
+        append(ftpClient, manifestPath, "D\t" + path);
+    }
+
+    public void recordVersion(FTPClient ftpClient, String manifestPath, String historyName) {
+        append(ftpClient, manifestPath, "V\t" + historyName);
+    }
+
+    /**
+     * Deja las lineas en el buffer. Si ya hay FLUSH_LINES las escribe con la
+     * conexion de quien llama, salvo que otro este escribiendo en ese
+     * momento; si no, lo hara el FLUSHER.
+     */
+    private void append(FTPClient ftpClient, String manifestPath, String... lines) {
+        if (!loaded) {
+            return;
+        }
+        boolean full;
+        synchronized (pending) {
+            Collections.addAll(pending, lines);
+            pendingPath = manifestPath;
+            full = pending.size() >= FLUSH_LINES;
+            scheduleFlush();
+        }
+        if (full && writeLock.tryLock()) {
+            try {
+                writePending(ftpClient, manifestPath);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Escribe ya todas las lineas pendientes
+     *
+     * @return false si no se pudieron escribir; siguen pendientes
+     */
+    public boolean flush(FTPClient ftpClient, String manifestPath) {
+        writeLock.lock();
+        try {
+            return writePending(ftpClient, manifestPath);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Vacia los buffers de todos los manifiestos, antes de salir
+     */
+    public static void flushAll() {
+        List<RemoteManifest> manifests;
+        synchronized (INSTANCES) {
+            manifests = new ArrayList<>(INSTANCES);
+        }
+        for (RemoteManifest manifest : manifests) {
+            manifest.flushWithPooledConnection();
+        }
+    }
+
+    /**
+     * Llamar con el monitor de pending
+     */
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            INSTANCES.add(this);
+            FLUSHER.schedule(this::flushInBackground, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushInBackground() {
+        synchronized (pending) {
+            flushScheduled = false;
+        }
+        if (!flushWithPooledConnection()) {
+            synchronized (pending) {
+                scheduleFlush();
+            }
+        }
+    }
+
+    private boolean flushWithPooledConnection() {
+        String manifestPath;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return true;
+            }
+            manifestPath = pendingPath;
+        }
+        FTPClient ftpClient = null;
+        try {
+            ftpClient = FTPConnectionPool.getInstance().getConnection(60);
+            return flush(ftpClient, manifestPath);
+        } catch (IOException e) {
+            Logger.warning("Could not get a connection to write the manifest: " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (ftpClient != null) {
+                FTPConnectionPool.getInstance().releaseConnection(ftpClient);
+            }
+        }
+    }
+
+    /**
+     * Añade todo lo pendiente y compacta si hace falta. Llamar con writeLock.
+     */
+    private boolean writePending(FTPClient ftpClient, String manifestPath) {
+        if (!appendPending(ftpClient, manifestPath)) {
+            return false;
+        }
+        if (lineCount > COMPACT_MIN_LINES && lineCount > 2 * (files.size() + versionIndex.size())) {
+            try {
+                rewrite(ftpClient, manifestPath);
+            } catch (IOException e) {
+                Logger.error("Error compacting manifest: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Añade con un APPE todo lo pendiente. Llamar con writeLock.
+     */
+    private boolean appendPending(FTPClient ftpClient, String manifestPath) {
+        List<String> lines;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return true;
+            }
+            lines = new ArrayList<>(pending);
+            pending.clear();
+        }
+        try {
+            StringBuilder content = new StringBuilder();
+            for (String line : lines) {
+                content.append(line).append('\n');
+            }
+            byte[] bytes = content.toString().getBytes(StandardCharsets.UTF_8);
+            if (!ftpClient.appendFile(manifestPath, new ByteArrayInputStream(bytes))) {
+                Logger.warning("Failed to append to manifest: " + ftpClient.getReplyString());
+                requeue(lines);
+                return false;
+            }
+            lineCount += lines.size();
+            remoteLength += bytes.length;
+            return true;
+        } catch (IOException e) {
+            Logger.error("Error appending to manifest: " + e.getMessage());
+            requeue(lines);
+            return false;
+        }
+    }
+
+    /**
+     * Devuelve al principio del buffer unas lineas que no se pudieron
+     * escribir. Repetir una linea ya escrita no cambia el resultado.
+     */
+    private void requeue(List<String> lines) {
+        synchronized (pending) {
+            pending.addAll(0, lines);
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Reescribe el manifiesto completo: sube un temporal y lo renombra encima
+     */
+    public void replace(FTPClient ftpClient, String manifestPath) throws IOException {
+        writeLock.lock();
+        try {
+            rewrite(ftpClient, manifestPath);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Otros clientes pueden haber añadido lineas desde que se cargo, asi que
+     * el contenido compactado sale del log remoto actual y no de la memoria.
+     * Si el log crece mientras se compacta se vuelve a intentar y, si sigue
+     * creciendo, se deja sin compactar. Llamar con writeLock.
+     */
+    private void rewrite(FTPClient ftpClient, String manifestPath) throws IOException {
+        // Las lineas propias tienen que estar en el log antes de releerlo
+        if (!appendPending(ftpClient, manifestPath)) {
+            throw new IOException("Failed to write pending manifest lines");
+        }
+
+        String tempPath = manifestPath + ".tmp";
+        for (int attempt = 0; attempt < COMPACT_ATTEMPTS; attempt++) {
+            Map<String, Entry> current = new HashMap<>();
+            Set<String> versions = new LinkedHashSet<>();
+            long remoteLength = readRemote(ftpClient, manifestPath, current, versions);
+            if (remoteLength < 0) {
+                // Todavia no existe: se escribe lo que hay en memoria
+                current.putAll(files);
+                versions.addAll(versionIndex.allNames());
+            }
+
+            StringBuilder content = new StringBuilder(HEADER).append('\n');
+            int lines = 0;
+            for (Map.Entry<String, Entry> file : current.entrySet()) {
+                content.append(line(file.getKey(), file.getValue())).append('\n');
+                lines++;
+            }
+            for (String historyName : versions) {
+                content.append("V\t").append(historyName).append('\n');
+                lines++;
+            }
+
+            byte[] bytes = content.toString().getBytes(StandardCharsets.UTF_8);
+            if (!ftpClient.storeFile(tempPath, new ByteArrayInputStream(bytes))) {
+                throw new IOException("Failed to upload manifest: " + ftpClient.getReplyString());
+            }
+            if (remoteLength >= 0 && remoteLength != remoteSize(ftpClient, manifestPath, remoteLength)) {
+                Logger.info("Manifest changed on the server while compacting, retrying");
+                continue;
+            }
+            // Algunos servidores no permiten RNTO sobre un archivo existente
+            if (!ftpClient.rename(tempPath, manifestPath)) {
+                ftpClient.deleteFile(manifestPath);
+                if (!ftpClient.rename(tempPath, manifestPath)) {
+                    throw new IOException("Failed to replace manifest: " + ftpClient.getReplyString());
+                }
+            }
+            lineCount = lines;
+            remoteLength = bytes.length;
+            Logger.info("Manifest written: " + current.size() + " files, " + versions.size() + " versions");
+            return;
+        }
+
+        ftpClient.deleteFile(tempPath);
+        Logger.warning("Manifest keeps changing on the server, leaving it uncompacted");
+    }
+
+    /**
+     * Descarga y aplica el log remoto sin tocar el estado en memoria
+     *
+     * @return bytes leidos, o -1 si no existe (550)
+     */
+    private static long readRemote(FTPClient ftpClient, String manifestPath, Map<String, Entry> files,
+            Set<String> versions) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        if (!ftpClient.retrieveFile(manifestPath, buffer)) {
+            if (ftpClient.getReplyCode() == FTPReply.FILE_UNAVAILABLE) {
+                return -1;
+            }
+            throw new IOException("Failed to read manifest: " + ftpClient.getReplyString());
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(buffer.toByteArray()), StandardCharsets.UTF_8))) {
+            String header = reader.readLine();
+            if (!HEADER.equals(header)) {
+                throw new IOException("Unrecognized manifest header, leaving the manifest untouched: " + header);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                apply(line, files, versions::add);
+            }
+        }
+        return buffer.size();
+    }
+
+    /**
+     * @param unknown valor a devolver si el servidor no soporta SIZE
+     */
+    private static long remoteSize(FTPClient ftpClient, String path, long unknown) throws IOException {
+        String reply = ftpClient.getSize(path);
+        if (reply == null) {
+            return unknown;
+        }
+        try {
+            return Long.parseLong(reply.trim());
+        } catch (NumberFormatException e) {
+            return unknown;
+        }
+    }
+
+    private static String line(String path, Entry entry) {
+        if (entry.isBatched()) {
+            return "B\t" + entry.size() + "\t" + entry.modified() + "\t" + entry.hash() + "\t" + entry.batch() + "\t"
+                    + entry.offset() + "\t" + path;
+        }
+        return "F\t" + entry.size() + "\t" + entry.modified() + "\t" + entry.hash() + "\t" + path;
+    }
+
+    public Entry get(String path) {
+        return files.get(path);
+    }
+
+    /**
+     * Metadatos de todos los archivos vivos
+     */
+    public Map<String, FileMetadata> tree() {
+        Map<String, FileMetadata> tree = new HashMap<>();
+        for (Map.Entry<String, Entry> file : files.entrySet()) {
+            tree.put(file.getKey(), new FileMetadata(file.getKey(), file.getValue().size(), file.getValue().modified()));
+        }
+        return tree;
+    }
+
+    /**
+     * Lista como listNames: las rutas bajo un prefijo, o el historial si el
+     * prefijo es el directorio de historial
+     */
+    public List<String> list(String remotePath, String historyName) {
+        List<String> names = new ArrayList<>();
+        if (remotePath.equals(historyName)) {
+            names.addAll(versionIndex.allNames());
+        } else {
+            String prefix = remotePath.isEmpty() ? "" : remotePath + "/";
+            for (String path : files.keySet()) {
+                if (path.startsWith(prefix)) {
+                    names.add(path);
+                }
+            }
+            if (remotePath.isEmpty() && versionIndex.size() > 0) {
+                names.add(historyName);
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+}
@@ -1,20 +1,52 @@
 package lib.Handlers;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
 
+import lib.Configurador;
 import lib.Connection.FTPConnectionPool;
+import lib.Enum.TransferPriority;
 import lib.Factory.FileTransferFactory;
 import lib.Interfaces.FileTransferHandler;
+import lib.Sync.FileMetadata;
+import lib.Sync.TransferJournal;
 import lib.Utils.Logger;
 
 /**
@@ -22,12 +54,71 @@ import lib.Utils.Logger;
  */
 public class StandardFileTransferHandler implements FileTransferHandler {
 
-    private static final String DIR_HISTORY = FileTransferFactory.getDIR_HISTORY();
-    private static final String WORK_DIR = FileTransferFactory.getWORK_DIR();
-    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+    private static final DateTimeFormatter DATE_TIME_FORMATTER = VersionIndex.DATE_TIME_FORMATTER;
+    private static final DateTimeFormatter BATCH_NAME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMddHHmmssSSS");
+
+    /**
+     * Cada cuantos bytes enviados se anota un punto de control en el diario
+     */
+    private static final long CHECKPOINT_INTERVAL = 8L * 1024 * 1024;
+
+    /**
+     * Tamaño minimo de cada rango en una descarga en paralelo
+     */
+    private static final long MIN_RANGE_SIZE = 4L * 1024 * 1024;
+
+    /**
+     * Directorio, relativo al de trabajo, con los lotes de archivos pequeños
+     */
+    public static final String BATCH_DIR = "batches";
+
+    /**
+     * Ultima linea de cada lote: la cabecera y el offset donde empieza su indice
+     */
+    private static final String BATCH_TRAILER = "GITFP-BATCH 1";
+
+    /**
+     * Hilos para los rangos de las descargas en paralelo; el primer rango lo
+     * descarga el propio hilo que pide el archivo
+     */
+    private static final ExecutorService RANGE_WORKERS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "RangeDownload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final VersionIndex versionIndex = new VersionIndex();
+    private final RemoteManifest manifest = new RemoteManifest(versionIndex,
+            Configurador.getManifestRefreshSeconds() * 1000L);
+    private final boolean manifestEnabled = Configurador.isManifestEnabled();
+    private volatile boolean useMlsd = true;
+
+    private final TransferJournal journal = TransferJournal.getInstance();
+    private final long resumeThreshold = Configurador.getResumeThresholdBytes();
+    private final int retries = Configurador.getTransferRetries();
+    private final long parallelThreshold = Configurador.getParallelDownloadThresholdBytes();
+    private final int parallelConnections = Configurador.getParallelDownloadConnections();
+
+    /**
+     * Directorios remotos que ya sabemos que existen, para no repetir MKD
+     */
+    private final Set<String> knownDirectories = ConcurrentHashMap.newKeySet();
 
     @Override
     public boolean uploadFile(File localFile, String remotePath) throws IOException {
+        if (localFile.length() >= resumeThreshold) {
+            return storeResumable(localFile, remotePath, false);
+        }
+        try (FileInputStream in = new FileInputStream(localFile)) {
+            return uploadStream(in, remotePath);
+        }
+    }
+
+    /**
+     * Envia el flujo directamente al canal de datos FTP
+     */
+    @Override
+    public boolean uploadStream(InputStream in, String remotePath) throws IOException {
 
         FTPClient ftpClient = null;
 
@@ -35,21 +126,24 @@ public class StandardFileTransferHandler implements FileTransferHandler {
             try {
                 ftpClient = FTPConnectionPool.getInstance().getConnection(60);
 
-                ftpClient.changeWorkingDirectory(WORK_DIR);
+                ftpClient.changeWorkingDirectory(workDir());
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 Logger.error("Interrupted while waiting for FTP connection");
                 return false;
             }
 
-            boolean success;
-            try (FileInputStream fis = new FileInputStream(localFile)) {
-                success = ftpClient.storeFile(remotePath, fis);
-                if (success) {
-                    Logger.info("Successfully uploaded: " + localFile.getName());
-                } else {
-                    Logger.error("Failed to upload: " + localFile.getName());
-                }
+            ensureManifest(ftpClient);
+            ensureParentDirectories(ftpClient, remotePath);
+
+            UploadStream upload = new UploadStream(in, sha256(), 0, null);
+            boolean success = ftpClient.storeFile(remotePath, upload);
+            if (success) {
+                Logger.info("Successfully uploaded: " + remotePath);
+                recordUpload(ftpClient, remotePath, upload);
+            } else {
+                Logger.error("Failed to upload: " + remotePath);
+                forgetParentDirectories(remotePath);
             }
 
             return success;
@@ -61,21 +155,129 @@ public class StandardFileTransferHandler implements FileTransferHandler {
         }
     }
 
+    /**
+     * Empaqueta todos los miembros en un unico objeto bajo batches/ y lo sube
+     * con un solo STOR; el manifiesto guarda el lote, el offset y el tamaño de
+     * cada uno, con un solo APPE. Al final del objeto va un indice en texto
+     * (offset, tamaño, sha256 y ruta de cada miembro) para que el lote se
+     * entienda por si solo.
+     *
+     * Sin manifiesto no habria forma de encontrar los miembros, asi que se
+     * suben uno a uno.
+     */
+    @Override
+    public Set<String> uploadBatch(Map<String, InputStream> members) throws IOException {
+        if (!manifestEnabled || members.size() < 2) {
+            return FileTransferHandler.super.uploadBatch(members);
+        }
+
+        String batchPath = BATCH_DIR + "/" + LocalDateTime.now().format(BATCH_NAME_FORMATTER) + "-"
+                + UUID.randomUUID().toString().substring(0, 8) + ".batch";
+        long modified = System.currentTimeMillis();
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        Map<String, RemoteManifest.Entry> index = new LinkedHashMap<>();
+        for (Map.Entry<String, InputStream> member : members.entrySet()) {
+            MessageDigest digest = sha256();
+            long offset = data.size();
+            new DigestInputStream(member.getValue(), digest).transferTo(data);
+            index.put(member.getKey(), new RemoteManifest.Entry(data.size() - offset, modified,
+                    HexFormat.of().formatHex(digest.digest()), batchPath, offset));
+        }
+        long indexOffset = data.size();
+        StringBuilder trailer = new StringBuilder();
+        for (Map.Entry<String, RemoteManifest.Entry> member : index.entrySet()) {
+            RemoteManifest.Entry entry = member.getValue();
+            trailer.append(entry.offset()).append('\t').append(entry.size()).append('\t').append(entry.hash())
+                    .append('\t').append(member.getKey()).append('\n');
+        }
+        trailer.append(BATCH_TRAILER).append('\t').append(indexOffset).append('\n');
+        data.write(trailer.toString().getBytes(StandardCharsets.UTF_8));
+
+        FTPClient ftpClient = null;
+        try {
+            try {
+                ftpClient = FTPConnectionPool.getInstance().getConnection(60);
+                ftpClient.changeWorkingDirectory(workDir());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Logger.error("Interrupted while waiting for FTP connection");
+                return Set.of();
+            }
+
+            ensureManifest(ftpClient);
+            ensureParentDirectories(ftpClient, batchPath);
+
+            if (!ftpClient.storeFile(batchPath, new ByteArrayInputStream(data.toByteArray()))) {
+                Logger.error("Failed to upload batch " + batchPath + ": " + ftpClient.getReplyString());
+                forgetParentDirectories(batchPath);
+                return Set.of();
+            }
+
+            // Como en cualquier reemplazo, la version anterior va al historial
+            for (String path : index.keySet()) {
+                if (manifest.get(path) != null) {
+                    moveToHistory(ftpClient, path, null);
+                }
+            }
+            manifest.recordBatch(ftpClient, manifestPath(), index);
+            Logger.info("Successfully uploaded " + index.size() + " files (" + indexOffset + " bytes) in batch "
+                    + batchPath);
+            return index.keySet();
+        } finally {
+            if (ftpClient != null) {
+                FTPConnectionPool.getInstance().releaseConnection(ftpClient);
+            }
+        }
+    }
+
     @Override
     public boolean deleteFile(String remotePath) throws IOException {
+        return delete(remotePath, false);
+    }
+
+    @Override
+    public boolean deleteFileKeepingVersion(String remotePath) throws IOException {
+        return delete(remotePath, true);
+    }
+
+    /**
+     * @param keepVersion si la copia actual se mueve al historial en lugar de
+     *                    borrarse
+     */
+    private boolean delete(String remotePath, boolean keepVersion) throws IOException {
         FTPClient ftpClient = null;
         try {
             try {
                 ftpClient = FTPConnectionPool.getInstance().getConnection(60);
-                ftpClient.changeWorkingDirectory(WORK_DIR);
+                ftpClient.changeWorkingDirectory(workDir());
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 throw new IOException("Interrupted while waiting for FTP connection", e);
             }
 
-            boolean success = ftpClient.deleteFile(remotePath);
+            ensureManifest(ftpClient);
+
+            RemoteManifest.Entry entry = batchedEntry(remotePath);
+            if (keepVersion && !moveToHistory(ftpClient, remotePath, null)) {
+                Logger.warning("Failed to delete remote file: " + remotePath + " (its last version could not be kept)");
+                return false;
+            }
+            if (entry != null) {
+                // El lote se queda en el servidor; basta con que el manifiesto
+                // deje de apuntar al miembro
+                manifest.recordDelete(ftpClient, manifestPath(), remotePath);
+                Logger.info("Successfully deleted remote file: " + remotePath + " (member of " + entry.batch() + ")");
+                return true;
+            }
+
+            // Al moverla al historial ya ha dejado de estar en su sitio
+            boolean success = keepVersion || ftpClient.deleteFile(remotePath);
             if (success) {
                 Logger.info("Successfully deleted remote file: " + remotePath);
+                if (manifestEnabled) {
+                    manifest.recordDelete(ftpClient, manifestPath(), remotePath);
+                }
             } else {
                 Logger.warning("Failed to delete remote file: " + remotePath);
             }
@@ -90,6 +292,30 @@ public class StandardFileTransferHandler implements FileTransferHandler {
 
     @Override
     public boolean replaceFile(File localFile, String remotePath) throws IOException {
+        if (localFile.length() >= resumeThreshold) {
+            return storeResumable(localFile, remotePath, true);
+        }
+        try (FileInputStream in = new FileInputStream(localFile)) {
+            return replaceStream(in, remotePath, null);
+        }
+    }
+
+    @Override
+    public boolean replaceFileKeepingVersion(File localFile, String remotePath, File previousVersion)
+            throws IOException {
+        try (FileInputStream in = new FileInputStream(localFile);
+                FileInputStream previous = new FileInputStream(previousVersion)) {
+            return replaceStream(in, remotePath, previous);
+        }
+    }
+
+    /**
+     * @param previousVersion contenido a guardar en el historial; si es null
+     *                        se mueve alli la copia remota actual
+     */
+    @Override
+    public boolean replaceStream(InputStream in, String remotePath, InputStream previousVersion)
+            throws IOException {
 
         /**
          * Create the history dir in the FTP if it doesnt exist
@@ -100,7 +326,7 @@ public class StandardFileTransferHandler implements FileTransferHandler {
         try {
             try {
                 ftpClient = FTPConnectionPool.getInstance().getConnection(60);
-                ftpClient.changeWorkingDirectory(WORK_DIR);
+                ftpClient.changeWorkingDirectory(workDir());
 
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -108,30 +334,19 @@ public class StandardFileTransferHandler implements FileTransferHandler {
                 return false;
             }
 
-            boolean success;
-            try (FileInputStream fis = new FileInputStream(localFile)) {
-
-                /**
-                 * Move to history directory the file to be replaced
-                 */
-                String timestamp = LocalDateTime.now().format(DATE_TIME_FORMATTER);
-                boolean renameSuccess = ftpClient.rename(remotePath,
-                        DIR_HISTORY + "/" + remotePath + "_" + timestamp);
-                if (renameSuccess) {
-                    Logger.info("Successfully moved file to history: " + remotePath + " with date "
-                            + LocalDate.now().toString());
-                } else {
-                    Logger.error("Failed to move file to history: " + remotePath);
-                }
+            ensureManifest(ftpClient);
 
-                ftpClient.changeWorkingDirectory(WORK_DIR);
+            moveToHistory(ftpClient, remotePath, previousVersion);
 
-                success = ftpClient.storeFile(remotePath, fis);
-                if (success) {
-                    Logger.info("Successfully replaced: " + remotePath);
-                } else {
-                    Logger.error("Failed to replace: " + remotePath);
-                }
+            ensureParentDirectories(ftpClient, remotePath);
+            UploadStream upload = new UploadStream(in, sha256(), 0, null);
+            boolean success = ftpClient.storeFile(remotePath, upload);
+            if (success) {
+                Logger.info("Successfully replaced: " + remotePath);
+                recordUpload(ftpClient, remotePath, upload);
+            } else {
+                Logger.error("Failed to replace: " + remotePath);
+                forgetParentDirectories(remotePath);
             }
 
             return success;
@@ -142,6 +357,240 @@ public class StandardFileTransferHandler implements FileTransferHandler {
         }
     }
 
+    /**
+     * Mueve al historial la version a reemplazar y deja el cliente de nuevo en
+     * el directorio de trabajo
+     *
+     * @return false si no se pudo guardar en el historial
+     */
+    private boolean moveToHistory(FTPClient ftpClient, String remotePath, InputStream previousVersion)
+            throws IOException {
+        String timestamp = LocalDateTime.now().format(DATE_TIME_FORMATTER);
+        String historyName = remotePath + "_" + timestamp;
+        String historyPath = historyDir() + "/" + historyName;
+        ensureParentDirectories(ftpClient, historyPath);
+        boolean renameSuccess;
+        RemoteManifest.Entry batched = previousVersion == null ? batchedEntry(remotePath) : null;
+        if (batched != null) {
+            // Un miembro de un lote no se puede renombrar: se copia su contenido
+            renameSuccess = ftpClient.storeFile(historyPath, new ByteArrayInputStream(readMember(ftpClient, batched)));
+        } else if (previousVersion == null) {
+            renameSuccess = ftpClient.rename(remotePath, historyPath);
+        } else {
+            renameSuccess = ftpClient.storeFile(historyPath, previousVersion);
+        }
+        if (renameSuccess) {
+            versionIndex.add(historyName);
+            if (manifestEnabled) {
+                manifest.recordVersion(ftpClient, manifestPath(), historyName);
+            }
+            Logger.info("Successfully moved file to history: " + remotePath + " with date "
+                    + LocalDate.now().toString());
+        } else {
+            Logger.error("Failed to move file to history: " + remotePath);
+            forgetParentDirectories(historyPath);
+        }
+
+        ftpClient.changeWorkingDirectory(workDir());
+        return renameSuccess;
+    }
+
+    /**
+     * Sube un archivo grande anotando su progreso en el diario de
+     * transferencias. Si la conexion se corta se reintenta con otra,
+     * continuando con REST desde el ultimo punto de control que el servidor ya
+     * tiene; si la aplicacion se cierra, la siguiente subida del mismo archivo
+     * continua igual.
+     *
+     * @param replace si hay que mover antes la version remota al historial
+     */
+    private boolean storeResumable(File localFile, String remotePath, boolean replace) throws IOException {
+        long size = localFile.length();
+        TransferJournal.Upload pending = journal.getUpload(remotePath);
+        if (pending != null && pending.size() != size) {
+            // El archivo ha cambiado desde el intento anterior
+            journal.finishUpload(remotePath);
+            pending = null;
+        }
+        // Si habia una subida a medias, lo que hay en el servidor es un
+        // fragmento y no debe acabar en el historial
+        boolean started = pending != null;
+
+        IOException failure = null;
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            FTPClient ftpClient = null;
+            boolean broken = false;
+            try {
+                try {
+                    ftpClient = FTPConnectionPool.getInstance().getConnection(60);
+                    ftpClient.changeWorkingDirectory(workDir());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    Logger.error("Interrupted while waiting for FTP connection");
+                    return false;
+                }
+
+                ensureManifest(ftpClient);
+                if (!started) {
+                    if (replace) {
+                        moveToHistory(ftpClient, remotePath, null);
+                    }
+                    journal.startUpload(remotePath, size);
+                    started = true;
+                }
+                ensureParentDirectories(ftpClient, remotePath);
+
+                try (FileInputStream in = new FileInputStream(localFile)) {
+                    MessageDigest digest = sha256();
+                    long offset = resumeOffset(ftpClient, remotePath, in, digest);
+                    if (offset > 0) {
+                        ftpClient.setRestartOffset(offset);
+                        Logger.info("Resuming upload of " + remotePath + " at byte " + offset + " of " + size);
+                    }
+
+                    UploadStream upload = new UploadStream(in, digest, offset, remotePath);
+                    boolean success = ftpClient.storeFile(remotePath, upload);
+                    if (success) {
+                        journal.finishUpload(remotePath);
+                        Logger.info("Successfully " + (replace ? "replaced: " : "uploaded: ") + remotePath);
+                        recordUpload(ftpClient, remotePath, upload);
+                    } else {
+                        Logger.error("Failed to " + (replace ? "replace: " : "upload: ") + remotePath);
+                        forgetParentDirectories(remotePath);
+                    }
+                    return success;
+                }
+            } catch (IOException e) {
+                failure = e;
+                broken = true;
+                Logger.warning("Upload of " + remotePath + " interrupted (attempt " + (attempt + 1) + "): "
+                        + e.getMessage());
+            } finally {
+                if (ftpClient != null) {
+                    if (broken) {
+                        FTPConnectionPool.getInstance().invalidateConnection(ftpClient);
+                    } else {
+                        FTPConnectionPool.getInstance().releaseConnection(ftpClient);
+                    }
+                }
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Busca el ultimo punto de control que el servidor ya ha recibido y
+     * comprueba que el archivo local sigue teniendo ese mismo prefijo. Deja
+     * el flujo y el digest justo en ese offset.
+     *
+     * @return el offset desde el que continuar, 0 si hay que empezar de cero
+     */
+    private long resumeOffset(FTPClient ftpClient, String remotePath, FileInputStream in, MessageDigest digest)
+            throws IOException {
+        TransferJournal.Upload pending = journal.getUpload(remotePath);
+        if (pending == null || pending.checkpoints().isEmpty()) {
+            return 0;
+        }
+
+        Map.Entry<Long, String> checkpoint = pending.checkpoints().floorEntry(remoteSize(ftpClient, remotePath));
+        if (checkpoint == null) {
+            return 0;
+        }
+
+        long offset = checkpoint.getKey();
+        byte[] buffer = new byte[64 * 1024];
+        long read = 0;
+        while (read < offset) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, offset - read));
+            if (n < 0) {
+                break;
+            }
+            digest.update(buffer, 0, n);
+            read += n;
+        }
+
+        if (read == offset && HexFormat.of().formatHex(cloneDigest(digest).digest()).equals(checkpoint.getValue())) {
+            return offset;
+        }
+
+        Logger.warning("Local copy of " + remotePath + " no longer matches the partial upload, starting over");
+        in.getChannel().position(0);
+        digest.reset();
+        journal.startUpload(remotePath, pending.size());
+        return 0;
+    }
+
+    /**
+     * @return el tamaño del archivo remoto, o 0 si no existe o el servidor no
+     *         soporta SIZE
+     */
+    private static long remoteSize(FTPClient ftpClient, String remotePath) throws IOException {
+        String reply = ftpClient.getSize(remotePath);
+        if (reply == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(reply.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Crea en el servidor los directorios intermedios de una ruta como
+     * "a/b/archivo.txt", relativa al directorio actual. Un directorio solo se
+     * recuerda si el MKD funciona o si se comprueba que ya existe.
+     */
+    private void ensureParentDirectories(FTPClient ftpClient, String path) throws IOException {
+        int slash = path.lastIndexOf('/');
+        if (slash <= 0) {
+            return;
+        }
+        String parent = path.substring(0, slash);
+        if (knownDirectories.contains(parent)) {
+            return;
+        }
+
+        int index = parent.startsWith("/") ? 1 : 0;
+        while (index >= 0) {
+            int next = parent.indexOf('/', index);
+            String dir = next < 0 ? parent : parent.substring(0, next);
+            if (!dir.isEmpty() && !knownDirectories.contains(dir)) {
+                if (ftpClient.makeDirectory(dir)) {
+                    Logger.info("Created remote directory: " + dir);
+                } else if (!directoryExists(ftpClient, dir)) {
+                    // El STOR que viene detras fallara y lo notificara
+                    Logger.warning("Could not create remote directory " + dir + ": " + ftpClient.getReplyString());
+                    return;
+                }
+                knownDirectories.add(dir);
+            }
+            index = next < 0 ? -1 : next + 1;
+        }
+    }
+
+    /**
+     * Comprueba con un CWD si un directorio existe (el MKD falla tambien
+     * cuando ya existia) y vuelve al directorio en el que estaba
+     */
+    private static boolean directoryExists(FTPClient ftpClient, String dir) throws IOException {
+        String current = ftpClient.printWorkingDirectory();
+        if (!ftpClient.changeWorkingDirectory(dir)) {
+            return false;
+        }
+        ftpClient.changeWorkingDirectory(current != null ? current : workDir());
+        return true;
+    }
+
+    /**
+     * Tras un STOR fallido se olvidan los directorios de la ruta, por si
+     * alguno ha dejado de existir, para volver a comprobarlos en la siguiente
+     * subida
+     */
+    private void forgetParentDirectories(String path) {
+        knownDirectories.removeIf(dir -> path.startsWith(dir + "/"));
+    }
+
     @Override
     public String getHandlerName() {
         return "StandardTransfer";
@@ -150,26 +599,40 @@ public class StandardFileTransferHandler implements FileTransferHandler {
     @Override
     public List<String> listFiles(String remotePath) throws IOException {
 
+        if (manifestEnabled && manifest.isLoaded() && !manifest.isRefreshDue()) {
+            return manifest.list(remotePath, historyDirName());
+        }
+
         FTPClient ftpClient = null;
 
         try {
             try {
                 ftpClient = FTPConnectionPool.getInstance().getConnection(60);
-                ftpClient.changeWorkingDirectory(WORK_DIR);
-                System.out.println("Actual WORK_DIR: " + ftpClient.printWorkingDirectory());
+                ftpClient.changeWorkingDirectory(workDir());
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 Logger.error("Interrupted while waiting for FTP connection");
                 return null;
             }
 
+            if (manifestEnabled) {
+                ensureManifest(ftpClient);
+                return manifest.list(remotePath, historyDirName());
+            }
+
             String[] files = ftpClient.listNames(remotePath);
             if (files == null) {
                 Logger.warning("No files found in remote path: " + remotePath);
                 return null;
             }
 
-            return List.of(files);
+            List<String> names = new ArrayList<>();
+            for (String file : files) {
+                if (!new File(file).getName().startsWith(RemoteManifest.MANIFEST_NAME)) {
+                    names.add(file);
+                }
+            }
+            return names;
         } finally {
             if (ftpClient != null) {
                 FTPConnectionPool.getInstance().releaseConnection(ftpClient);
@@ -178,30 +641,423 @@ public class StandardFileTransferHandler implements FileTransferHandler {
 
     }
 
+    /**
+     * Los archivos grandes se anotan en el diario de transferencias: si la
+     * descarga queda a medias, el siguiente intento continua desde lo que ya
+     * hay en el archivo local siempre que el remoto no haya cambiado.
+     *
+     * Los que superan el umbral de descarga en paralelo se reparten en
+     * rangos, cada uno por su propia conexion del pool, y se escriben en su
+     * sitio dentro del archivo local ya reservado.
+     */
     @Override
     public boolean downloadFile(String remotePath, File localFile) throws IOException {
+        RemoteManifest.Entry entry = manifestEnabled && manifest.isLoaded() ? manifest.get(remotePath) : null;
+        if (entry != null && entry.isBatched()) {
+            try (FileOutputStream fos = new FileOutputStream(localFile)) {
+                return retrieveMember(remotePath, entry, fos);
+            }
+        }
+
+        TransferJournal.Download pending = journal.getDownload(remotePath);
+        if (pending == null && entry != null && entry.size() < Math.min(resumeThreshold, parallelThreshold)) {
+            try (FileOutputStream fos = new FileOutputStream(localFile)) {
+                return retrieve(remotePath, fos, 0);
+            }
+        }
+
+        long remoteSize;
+        String remoteModified;
         FTPClient ftpClient = null;
         try {
             try {
                 ftpClient = FTPConnectionPool.getInstance().getConnection(60);
-                ftpClient.changeWorkingDirectory(WORK_DIR);
+                ftpClient.changeWorkingDirectory(workDir());
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 Logger.error("Interrupted while waiting for FTP connection");
                 return false;
             }
+            remoteSize = remoteSize(ftpClient, remotePath);
+            remoteModified = ftpClient.getModificationTime(remotePath);
+        } finally {
+            if (ftpClient != null) {
+                FTPConnectionPool.getInstance().releaseConnection(ftpClient);
+            }
+        }
+
+        String localPath = localFile.getAbsolutePath();
+        boolean resumable = pending != null && pending.remoteSize() == remoteSize
+                && String.valueOf(remoteModified).equals(pending.remoteModified())
+                && pending.localPath().equals(localPath)
+                && localFile.isFile() && localFile.length() <= remoteSize;
 
-            boolean success;
+        if (!resumable && remoteSize >= parallelThreshold && parallelConnections > 1) {
+            // Con rangos en paralelo el tamaño del archivo local no indica el
+            // progreso, asi que no se anota en el diario
+            journal.finishDownload(remotePath);
+            return downloadRanges(remotePath, localFile, remoteSize);
+        }
+
+        if (pending == null && remoteSize < resumeThreshold) {
             try (FileOutputStream fos = new FileOutputStream(localFile)) {
-                success = ftpClient.retrieveFile(remotePath, fos);
+                return retrieve(remotePath, fos, 0);
+            }
+        }
+
+        long offset = 0;
+        if (resumable) {
+            offset = localFile.length();
+            Logger.info("Resuming download of " + remotePath + " at byte " + offset + " of " + remoteSize);
+        } else {
+            journal.startDownload(remotePath, remoteSize, String.valueOf(remoteModified), localPath);
+        }
+
+        boolean success;
+        try (FileOutputStream fos = new FileOutputStream(localFile, offset > 0)) {
+            success = retrieve(remotePath, fos, offset);
+        }
+        if (success) {
+            journal.finishDownload(remotePath);
+        }
+        return success;
+    }
+
+    /**
+     * Descarga el archivo en rangos simultaneos, uno por conexion, escribiendo
+     * cada uno con escrituras posicionales sobre el archivo local reservado
+     * con su tamaño final
+     */
+    private boolean downloadRanges(String remotePath, File localFile, long size) throws IOException {
+        int parts = (int) Math.max(1, Math.min(parallelConnections, size / MIN_RANGE_SIZE));
+        long rangeSize = (size + parts - 1) / parts;
+        Logger.info("Downloading " + remotePath + " (" + size + " bytes) in " + parts + " parallel ranges");
+
+        try (FileChannel channel = FileChannel.open(localFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (size > 0) {
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            }
+
+            // Los rangos piden conexion con la prioridad de quien pide el archivo
+            TransferPriority priority = TransferPriority.current();
+            List<Future<Boolean>> others = new ArrayList<>();
+            for (int i = 1; i < parts; i++) {
+                long start = i * rangeSize;
+                long end = Math.min(size, start + rangeSize);
+                others.add(RANGE_WORKERS.submit(() -> {
+                    TransferPriority.set(priority);
+                    return retrieveRange(remotePath, channel, start, end, size);
+                }));
+            }
+
+            IOException failure = null;
+            boolean success = false;
+            try {
+                success = retrieveRange(remotePath, channel, 0, Math.min(size, rangeSize), size);
+            } catch (IOException e) {
+                failure = e;
+            }
+            for (Future<Boolean> other : others) {
+                try {
+                    success &= other.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new IOException("Interrupted while downloading " + remotePath, e);
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException io ? io
+                                : new IOException("Range download failed", e.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            if (success) {
+                Logger.info("Successfully downloaded: " + remotePath);
+            } else {
+                Logger.error("Failed to download: " + remotePath);
+            }
+            return success;
+        }
+    }
+
+    /**
+     * Descarga los bytes [start, end) del archivo remoto con REST y cierra el
+     * canal de datos al llegar al final del rango. Si la conexion se corta se
+     * continua en otra desde lo ya escrito.
+     *
+     * Una conexion cuyo rango acaba antes del final del archivo no vuelve al
+     * pool: segun el servidor el RETR abortado deja una o dos respuestas y la
+     * siguiente orden podria leer la que sobra.
+     */
+    private boolean retrieveRange(String remotePath, FileChannel channel, long start, long end, long size)
+            throws IOException {
+        long position = start;
+        byte[] buffer = new byte[64 * 1024];
+
+        IOException failure = null;
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            FTPClient ftpClient = null;
+            boolean reusable = false;
+            try {
+                try {
+                    ftpClient = FTPConnectionPool.getInstance().getConnection(60);
+                    ftpClient.changeWorkingDirectory(workDir());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    Logger.error("Interrupted while waiting for FTP connection");
+                    return false;
+                }
+
+                if (position > 0) {
+                    ftpClient.setRestartOffset(position);
+                }
+                long rangeStart = position;
+                InputStream in = ftpClient.retrieveFileStream(remotePath);
+                if (in == null) {
+                    Logger.error("Failed to download range " + start + "-" + end + " of " + remotePath + ": "
+                            + ftpClient.getReplyString());
+                    reusable = true;
+                    return false;
+                }
+                try {
+                    while (position < end) {
+                        int n = in.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+                        if (n < 0) {
+                            break;
+                        }
+                        ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+                        while (data.hasRemaining()) {
+                            position += channel.write(data, position);
+                        }
+                    }
+                } finally {
+                    in.close();
+                    FTPConnectionPool.getInstance().recordTransfer(position - rangeStart);
+                }
+                // Si el rango acaba antes del final del archivo el servidor
+                // responde que la transferencia se ha abortado, lo cual es
+                // lo esperado
+                ftpClient.completePendingCommand();
+
+                if (position < end) {
+                    Logger.error("Remote file " + remotePath + " ended at byte " + position + ", expected " + end);
+                    return false;
+                }
+                reusable = end >= size;
+                return true;
+            } catch (IOException e) {
+                failure = e;
+                Logger.warning("Range download of " + remotePath + " interrupted at byte " + position
+                        + " (attempt " + (attempt + 1) + "): " + e.getMessage());
+            } finally {
+                if (ftpClient != null) {
+                    if (reusable) {
+                        FTPConnectionPool.getInstance().releaseConnection(ftpClient);
+                    } else {
+                        FTPConnectionPool.getInstance().invalidateConnection(ftpClient);
+                    }
+                }
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Escribe el contenido remoto directamente en el flujo a medida que llega.
+     * Si la conexion se corta se continua en otra desde lo ya escrito.
+     */
+    @Override
+    public boolean downloadStream(String remotePath, OutputStream out) throws IOException {
+        RemoteManifest.Entry entry = batchedEntry(remotePath);
+        if (entry != null) {
+            return retrieveMember(remotePath, entry, out);
+        }
+        return retrieve(remotePath, out, 0);
+    }
+
+    /**
+     * Descarga solo los bytes de un miembro de su lote y los escribe en el
+     * flujo una vez comprobado su hash. Si la conexion se corta se repite en
+     * otra.
+     */
+    private boolean retrieveMember(String remotePath, RemoteManifest.Entry entry, OutputStream out)
+            throws IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            FTPClient ftpClient = null;
+            boolean broken = false;
+            try {
+                try {
+                    ftpClient = FTPConnectionPool.getInstance().getConnection(60);
+                    ftpClient.changeWorkingDirectory(workDir());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    Logger.error("Interrupted while waiting for FTP connection");
+                    return false;
+                }
+
+                byte[] content = readMember(ftpClient, entry);
+                if (!HexFormat.of().formatHex(sha256().digest(content)).equals(entry.hash())) {
+                    Logger.error("Checksum mismatch for " + remotePath + " in batch " + entry.batch());
+                    return false;
+                }
+                out.write(content);
+                Logger.info("Successfully downloaded: " + remotePath + " from batch " + entry.batch());
+                return true;
+            } catch (IOException e) {
+                failure = e;
+                broken = true;
+                Logger.warning("Download of " + remotePath + " from batch " + entry.batch() + " failed (attempt "
+                        + (attempt + 1) + "): " + e.getMessage());
+            } finally {
+                if (ftpClient != null) {
+                    if (broken) {
+                        FTPConnectionPool.getInstance().invalidateConnection(ftpClient);
+                    } else {
+                        FTPConnectionPool.getInstance().releaseConnection(ftpClient);
+                    }
+                }
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Lee el rango de un miembro dentro de su lote con REST. El resto del lote
+     * se lee y se descarta en lugar de cortar el canal de datos: un RETR
+     * abortado puede dejar una respuesta de mas y el cliente se sigue usando
+     * (moveToHistory). Un lote no pasa de sync.batch.max.files miembros
+     * pequeños.
+     */
+    private byte[] readMember(FTPClient ftpClient, RemoteManifest.Entry entry) throws IOException {
+        if (entry.offset() > 0) {
+            ftpClient.setRestartOffset(entry.offset());
+        }
+        InputStream in = ftpClient.retrieveFileStream(entry.batch());
+        if (in == null) {
+            throw new IOException("Failed to open batch " + entry.batch() + ": " + ftpClient.getReplyString());
+        }
+        byte[] content;
+        long rest;
+        try {
+            content = in.readNBytes((int) entry.size());
+            rest = in.transferTo(OutputStream.nullOutputStream());
+        } finally {
+            in.close();
+        }
+        FTPConnectionPool.getInstance().recordTransfer(content.length + rest);
+        if (!ftpClient.completePendingCommand()) {
+            throw new IOException("Failed to read batch " + entry.batch() + ": " + ftpClient.getReplyString());
+        }
+        if (content.length < entry.size()) {
+            throw new IOException("Batch " + entry.batch() + " ended at byte " + (entry.offset() + content.length)
+                    + ", expected " + (entry.offset() + entry.size()));
+        }
+        return content;
+    }
+
+    /**
+     * @return la entrada del manifiesto si la ruta esta guardada dentro de un
+     *         lote, null si es un archivo propio
+     */
+    private RemoteManifest.Entry batchedEntry(String remotePath) {
+        if (!manifestEnabled || !manifest.isLoaded()) {
+            return null;
+        }
+        RemoteManifest.Entry entry = manifest.get(remotePath);
+        return entry != null && entry.isBatched() ? entry : null;
+    }
+
+    /**
+     * @param startOffset bytes del archivo remoto que el destino ya tiene
+     */
+    private boolean retrieve(String remotePath, OutputStream out, long startOffset) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(out);
+
+        IOException failure = null;
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            FTPClient ftpClient = null;
+            boolean broken = false;
+            try {
+                try {
+                    ftpClient = FTPConnectionPool.getInstance().getConnection(60);
+                    ftpClient.changeWorkingDirectory(workDir());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    Logger.error("Interrupted while waiting for FTP connection");
+                    return false;
+                }
+
+                long offset = startOffset + counter.count;
+                if (offset > 0) {
+                    ftpClient.setRestartOffset(offset);
+                }
+                boolean success = ftpClient.retrieveFile(remotePath, counter);
                 if (success) {
                     Logger.info("Successfully downloaded: " + remotePath);
                 } else {
                     Logger.error("Failed to download: " + remotePath);
                 }
+
+                return success;
+            } catch (IOException e) {
+                failure = e;
+                broken = true;
+                Logger.warning("Download of " + remotePath + " interrupted at byte " + (startOffset + counter.count)
+                        + " (attempt " + (attempt + 1) + "): " + e.getMessage());
+            } finally {
+                if (ftpClient != null) {
+                    if (broken) {
+                        FTPConnectionPool.getInstance().invalidateConnection(ftpClient);
+                    } else {
+                        FTPConnectionPool.getInstance().releaseConnection(ftpClient);
+                    }
+                }
             }
+        }
+        throw failure;
+    }
 
-            return success;
+    @Override
+    public HashMap<LocalDateTime, File> checkVersions(String fileName) throws IOException {
+        if (!versionIndex.isLoaded() && !loadVersionIndex()) {
+            return null;
+        }
+
+        HashMap<LocalDateTime, File> versions = new HashMap<>();
+        for (Map.Entry<LocalDateTime, String> version : versionIndex.get(fileName).entrySet()) {
+            versions.put(version.getKey(), new File(version.getValue()));
+        }
+        Logger.info("Found " + versions.size() + " versions of " + fileName);
+        return versions;
+    }
+
+    @Override
+    public String remoteFingerprint(String remotePath) throws IOException {
+        if (manifestEnabled && manifest.isLoaded() && !manifest.isRefreshDue()) {
+            return manifestFingerprint(remotePath);
+        }
+
+        FTPClient ftpClient = null;
+        try {
+            try {
+                ftpClient = FTPConnectionPool.getInstance().getConnection(60);
+                ftpClient.changeWorkingDirectory(workDir());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for FTP connection", e);
+            }
+
+            if (manifestEnabled) {
+                ensureManifest(ftpClient);
+                return manifestFingerprint(remotePath);
+            }
+            String modified = ftpClient.getModificationTime(remotePath);
+            return modified == null ? null : remoteSize(ftpClient, remotePath) + "@" + modified;
         } finally {
             if (ftpClient != null) {
                 FTPConnectionPool.getInstance().releaseConnection(ftpClient);
@@ -209,71 +1065,411 @@ public class StandardFileTransferHandler implements FileTransferHandler {
         }
     }
 
-    @Override
-    public HashMap<LocalDateTime, File> checkVersions(String fileName) throws IOException {
-        HashMap<LocalDateTime, File> versions = new HashMap<>();
+    /**
+     * El hash del manifiesto, o tamaño y fecha si se reconstruyo sin hashes
+     */
+    private String manifestFingerprint(String remotePath) {
+        RemoteManifest.Entry entry = manifest.get(remotePath);
+        if (entry == null) {
+            return null;
+        }
+        return entry.hash().equals("-") ? entry.size() + "@" + entry.modified() : entry.hash();
+    }
+
+    /**
+     * Lista el historial completo una sola vez para rellenar el indice de versiones
+     */
+    private synchronized boolean loadVersionIndex() throws IOException {
+        if (versionIndex.isLoaded()) {
+            return true;
+        }
 
         FTPClient ftpClient = null;
-       
         try {
             try {
                 ftpClient = FTPConnectionPool.getInstance().getConnection(60);
-                
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 Logger.error("Interrupted while waiting for FTP connection");
-                return null;
+                return false;
             }
 
-            if (!ftpClient.changeWorkingDirectory(DIR_HISTORY)) {
-                Logger.warning("Could not change to directory: " + DIR_HISTORY);
-                return null;
+            if (manifestEnabled) {
+                ensureManifest(ftpClient);
+                return true;
             }
-            
-            String[] files = ftpClient.listNames();
-            if (files == null || files.length == 0) {
-                Logger.warning("No files found in remote path: " + DIR_HISTORY);
-                return null;
+
+            walkHistory(ftpClient);
+            return true;
+        } finally {
+            if (ftpClient != null) {
+                FTPConnectionPool.getInstance().releaseConnection(ftpClient);
             }
-            
-            Logger.info("Found " + files.length + " files in " + DIR_HISTORY);
-            
-            for (String file : files) {
-                Logger.info("Checking file: " + file);
-                if (file.contains(fileName)) {
-                    try {
-                        int underscoreIndex = file.lastIndexOf("_");
-                        if (underscoreIndex > 0 && underscoreIndex < file.length() - 1) {
-                            String dateStr = file.substring(underscoreIndex + 1);
-                            
-                            // Intentar parsear primero como LocalDateTime (nuevo formato)
-                            LocalDateTime dateTime;
-                            try {
-                                dateTime = LocalDateTime.parse(dateStr, DATE_TIME_FORMATTER);
-                            } catch (Exception e) {
-                                // Si falla, intentar con el formato antiguo (solo fecha)
-                                LocalDate date = LocalDate.parse(dateStr);
-                                dateTime = date.atStartOfDay(); // Convertir LocalDate a LocalDateTime
-                            }
-                            
-                            Logger.info("Found version from datetime: " + dateTime);
-                            versions.put(dateTime, new File(file));
-                        }
-                    } catch (Exception e) {
-                        Logger.error("Error parsing date from file " + file + ": " + e.getMessage());
-                    }
+        }
+    }
+
+    /**
+     * Recorre history/ entero y rellena el indice de versiones
+     */
+    private void walkHistory(FTPClient ftpClient) throws IOException {
+        List<String> pending = new ArrayList<>();
+        pending.add("");
+        int skipped = 0;
+        while (!pending.isEmpty()) {
+            String relativeDir = pending.remove(pending.size() - 1);
+            String dir = relativeDir.isEmpty() ? historyDir() : historyDir() + "/" + relativeDir;
+
+            for (FTPFile entry : listEntries(ftpClient, dir)) {
+                if (entry == null || entry.getName().equals(".") || entry.getName().equals("..")) {
+                    continue;
+                }
+                String relative = relativeDir.isEmpty() ? entry.getName() : relativeDir + "/" + entry.getName();
+                if (entry.isDirectory()) {
+                    pending.add(relative);
+                } else if (!versionIndex.add(relative)) {
+                    skipped++;
                 }
             }
-            
-            ftpClient.changeWorkingDirectory(WORK_DIR);
+        }
+
+        versionIndex.markLoaded();
+        Logger.info("Version index loaded: " + versionIndex.size() + " versions, " + skipped + " unrecognized entries");
+    }
+
+    /**
+     * Lista un directorio remoto. MLSD da fechas exactas en UTC; LIST es el
+     * fallback para servidores que no lo soportan.
+     */
+    private FTPFile[] listEntries(FTPClient ftpClient, String dir) throws IOException {
+        if (useMlsd) {
+            FTPFile[] entries = ftpClient.mlistDir(dir);
+            if (entries != null && FTPReply.isPositiveCompletion(ftpClient.getReplyCode())) {
+                return entries;
+            }
+            useMlsd = false;
+        }
+        return ftpClient.listFiles(dir);
+    }
+
+    @Override
+    public Map<String, FileMetadata> listRemoteTree() throws IOException {
+        if (manifestEnabled && manifest.isLoaded() && !manifest.isRefreshDue()) {
+            return manifest.tree();
+        }
 
+        FTPClient ftpClient = null;
+        try {
+            try {
+                ftpClient = FTPConnectionPool.getInstance().getConnection(60);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Logger.error("Interrupted while waiting for FTP connection");
+                return null;
+            }
+
+            if (manifestEnabled) {
+                ensureManifest(ftpClient);
+                return manifest.tree();
+            }
+            return walkRemoteTree(ftpClient);
         } finally {
             if (ftpClient != null) {
                 FTPConnectionPool.getInstance().releaseConnection(ftpClient);
             }
         }
-        
-        return versions;
     }
 
-}
\ No newline at end of file
+    /**
+     * Recorre el directorio de trabajo con LIST/MLSD, sin entrar en el
+     * historial ni en los lotes
+     */
+    private Map<String, FileMetadata> walkRemoteTree(FTPClient ftpClient) throws IOException {
+        Map<String, FileMetadata> tree = new HashMap<>();
+
+        String root = FileTransferFactory.getWORK_DIR();
+        String historyName = historyDirName();
+
+        List<String> pending = new ArrayList<>();
+        pending.add("");
+        while (!pending.isEmpty()) {
+            String relativeDir = pending.remove(pending.size() - 1);
+            String absoluteDir = relativeDir.isEmpty() ? root
+                    : root.isEmpty() ? relativeDir : root + "/" + relativeDir;
+
+            for (FTPFile entry : listEntries(ftpClient, absoluteDir)) {
+                if (entry == null) {
+                    continue;
+                }
+                String name = entry.getName();
+                if (name.equals(".") || name.equals("..")) {
+                    continue;
+                }
+                String relative = relativeDir.isEmpty() ? name : relativeDir + "/" + name;
+                if (entry.isDirectory()) {
+                    if (!(relativeDir.isEmpty() && (name.equals(historyName) || name.equals(BATCH_DIR)
+                            || name.equals(ChunkedFileTransferHandler.CHUNK_DIR)))) {
+                        pending.add(relative);
+                    }
+                } else if (entry.isFile() && !name.startsWith(RemoteManifest.MANIFEST_NAME)) {
+                    long modified = entry.getTimestamp() != null ? entry.getTimestamp().getTimeInMillis() : 0L;
+                    tree.put(relative, new FileMetadata(relative, entry.getSize(), modified));
+                }
+            }
+        }
+
+        Logger.info("Remote tree read: " + tree.size() + " files");
+        return tree;
+    }
+
+    /**
+     * Recupera los miembros de todos los lotes de batches/ leyendo el indice
+     * que cada uno lleva al final. Los lotes se leen por orden de nombre, que
+     * empieza por la fecha, asi que el miembro de un lote posterior sustituye
+     * al de uno anterior.
+     *
+     * Un miembro borrado despues de subirse vuelve a aparecer: el borrado solo
+     * constaba en el manifiesto.
+     */
+    private Map<String, RemoteManifest.Entry> readBatchIndexes(FTPClient ftpClient) throws IOException {
+        Map<String, RemoteManifest.Entry> members = new HashMap<>();
+        String root = FileTransferFactory.getWORK_DIR();
+        String[] names = ftpClient.listNames(root.isEmpty() ? BATCH_DIR : root + "/" + BATCH_DIR);
+        if (names == null) {
+            return members;
+        }
+
+        List<String> batches = new ArrayList<>();
+        for (String name : names) {
+            String batchName = new File(name).getName();
+            if (batchName.endsWith(".batch")) {
+                batches.add(batchName);
+            }
+        }
+        Collections.sort(batches);
+
+        for (String batchName : batches) {
+            String batchPath = BATCH_DIR + "/" + batchName;
+            String absolutePath = root.isEmpty() ? batchPath : root + "/" + batchPath;
+
+            // El trailer cabe de sobra en los ultimos 64 bytes
+            String tail = new String(readFrom(ftpClient, absolutePath,
+                    Math.max(0, remoteSize(ftpClient, absolutePath) - 64)), StandardCharsets.UTF_8);
+            String[] trailer = tail.substring(tail.lastIndexOf('\n', tail.length() - 2) + 1).trim().split("\t");
+            if (trailer.length != 2 || !trailer[0].equals(BATCH_TRAILER)) {
+                Logger.warning("Batch " + batchPath + " has no index, skipping it");
+                continue;
+            }
+
+            long modified = batchTime(batchName);
+            Map<String, RemoteManifest.Entry> batch = new HashMap<>();
+            try {
+                String index = new String(readFrom(ftpClient, absolutePath, Long.parseLong(trailer[1])),
+                        StandardCharsets.UTF_8);
+                for (String line : index.split("\n")) {
+                    String[] parts = line.split("\t", 4);
+                    if (parts.length == 4 && !parts[0].equals(BATCH_TRAILER)) {
+                        batch.put(parts[3], new RemoteManifest.Entry(Long.parseLong(parts[1]), modified, parts[2],
+                                batchPath, Long.parseLong(parts[0])));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                Logger.warning("Batch " + batchPath + " has a damaged index, skipping it");
+                continue;
+            }
+            members.putAll(batch);
+            Logger.info("Recovered " + batch.size() + " files from batch " + batchPath);
+        }
+        return members;
+    }
+
+    /**
+     * Lee un archivo remoto desde un offset hasta el final
+     */
+    private static byte[] readFrom(FTPClient ftpClient, String path, long offset) throws IOException {
+        if (offset > 0) {
+            ftpClient.setRestartOffset(offset);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ftpClient.retrieveFile(path, out)) {
+            throw new IOException("Failed to read " + path + ": " + ftpClient.getReplyString());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Fecha en la que se subio un lote, sacada de su nombre
+     */
+    private static long batchTime(String batchName) {
+        try {
+            return LocalDateTime.parse(batchName.substring(0, 17), BATCH_NAME_FORMATTER)
+                    .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException | IndexOutOfBoundsException e) {
+            return 0L;
+        }
+    }
+
+    /**
+     * Carga el manifiesto remoto la primera vez, y despues lo recarga si otro
+     * cliente lo ha cambiado. Si no existe lo genera recorriendo el servidor
+     * una unica vez y lo sube.
+     */
+    private void ensureManifest(FTPClient ftpClient) throws IOException {
+        if (!manifestEnabled) {
+            return;
+        }
+        if (manifest.isLoaded()) {
+            manifest.refresh(ftpClient, manifestPath());
+            return;
+        }
+        synchronized (this) {
+            if (manifest.isLoaded() || manifest.load(ftpClient, manifestPath())) {
+                return;
+            }
+
+            Logger.info("No manifest found, building it from the remote tree");
+            manifest.reset(walkRemoteTree(ftpClient), readBatchIndexes(ftpClient));
+            if (!versionIndex.isLoaded()) {
+                walkHistory(ftpClient);
+            }
+            manifest.replace(ftpClient, manifestPath());
+        }
+    }
+
+    private void recordUpload(FTPClient ftpClient, String remotePath, UploadStream upload) {
+        if (manifestEnabled) {
+            String hash = HexFormat.of().formatHex(upload.getMessageDigest().digest());
+            manifest.recordFile(ftpClient, manifestPath(), remotePath, upload.getCount(),
+                    System.currentTimeMillis(), hash);
+        }
+    }
+
+    /**
+     * Calcula el SHA-256 y cuenta los bytes que se envian, para registrarlos
+     * en el manifiesto sin volver a leer el origen. No cierra el flujo
+     * original, que pertenece a quien lo abrio.
+     *
+     * Si se le da una ruta, anota en el diario de transferencias un punto de
+     * control cada CHECKPOINT_INTERVAL bytes, cortando las lecturas en esos
+     * limites para que el digest corresponda exactamente al offset.
+     */
+    private class UploadStream extends DigestInputStream {
+
+        private final String checkpointPath;
+        private long count;
+
+        /**
+         * @param offset bytes ya enviados en un intento anterior, ya incluidos en digest
+         */
+        UploadStream(InputStream in, MessageDigest digest, long offset, String checkpointPath) {
+            super(in, digest);
+            this.count = offset;
+            this.checkpointPath = checkpointPath;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                advance(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (checkpointPath != null) {
+                long untilCheckpoint = CHECKPOINT_INTERVAL - count % CHECKPOINT_INTERVAL;
+                len = (int) Math.min(len, untilCheckpoint);
+            }
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                advance(n);
+            }
+            return n;
+        }
+
+        private void advance(int n) throws IOException {
+            count += n;
+            if (checkpointPath != null && count % CHECKPOINT_INTERVAL == 0) {
+                journal.checkpoint(checkpointPath, count,
+                        HexFormat.of().formatHex(cloneDigest(getMessageDigest()).digest()));
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Cuenta los bytes escritos en el destino, para saber desde donde
+     * continuar una descarga cortada
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+    }
+
+    private static MessageDigest cloneDigest(MessageDigest digest) throws IOException {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IOException("SHA-256 digest cannot be cloned", e);
+        }
+    }
+
+    /**
+     * Se leen en cada uso y no al cargar la clase: el manejador puede crearse
+     * antes de que initFileSystems haya averiguado los directorios remotos
+     */
+    private static String workDir() {
+        return FileTransferFactory.getWORK_DIR();
+    }
+
+    private static String historyDir() {
+        return FileTransferFactory.getDIR_HISTORY();
+    }
+
+    private static String manifestPath() {
+        String root = FileTransferFactory.getWORK_DIR();
+        return root.isEmpty() ? RemoteManifest.MANIFEST_NAME : root + "/" + RemoteManifest.MANIFEST_NAME;
+    }
+
+    private static String historyDirName() {
+        return new File(FileTransferFactory.getDIR_HISTORY()).getName();
+    }
+
+}
@@ -0,0 +1,117 @@
+package lib.Handlers;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Indice en memoria de las versiones guardadas en history/: para cada archivo
+ * base, sus versiones ordenadas por fecha. Se rellena una vez listando el
+ * historial y despues se actualiza con cada replaceFile, de modo que consultar
+ * versiones no necesita recorrer todo el directorio.
+ */
+public class VersionIndex {
+
+    public static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+    /**
+     * Nombre de una entrada del historial separado en archivo base y fecha
+     */
+    public record Version(String baseName, LocalDateTime dateTime) {
+    }
+
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<LocalDateTime, String>> versions = new ConcurrentHashMap<>();
+    private volatile boolean loaded = false;
+
+    /**
+     * Separa "dir/archivo.txt_2024-05-01T10:00:00" en "dir/archivo.txt" y su
+     * fecha. Acepta tambien el formato antiguo con solo la fecha.
+     *
+     * @return null si el nombre no sigue el formato del historial
+     */
+    public static Version parse(String historyName) {
+        int underscoreIndex = historyName.lastIndexOf('_');
+        if (underscoreIndex <= 0 || underscoreIndex >= historyName.length() - 1) {
+            return null;
+        }
+        String baseName = historyName.substring(0, underscoreIndex);
+        String dateStr = historyName.substring(underscoreIndex + 1);
+        try {
+            return new Version(baseName, LocalDateTime.parse(dateStr, DATE_TIME_FORMATTER));
+        } catch (Exception e) {
+            try {
+                return new Version(baseName, LocalDate.parse(dateStr).atStartOfDay());
+            } catch (Exception ignored) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Añade una entrada del historial
+     *
+     * @param historyName ruta relativa a history/
+     * @return false si el nombre no tiene formato de version
+     */
+    public boolean add(String historyName) {
+        Version version = parse(historyName);
+        if (version == null) {
+            return false;
+        }
+        versions.computeIfAbsent(version.baseName(), k -> new ConcurrentSkipListMap<>())
+                .put(version.dateTime(), historyName);
+        return true;
+    }
+
+    public void remove(String historyName) {
+        Version version = parse(historyName);
+        if (version == null) {
+            return;
+        }
+        versions.computeIfPresent(version.baseName(), (k, map) -> {
+            map.remove(version.dateTime());
+            return map.isEmpty() ? null : map;
+        });
+    }
+
+    /**
+     * Versiones de un archivo base, de la mas antigua a la mas reciente
+     */
+    public NavigableMap<LocalDateTime, String> get(String baseName) {
+        NavigableMap<LocalDateTime, String> found = versions.get(baseName);
+        return found != null ? Collections.unmodifiableNavigableMap(found) : Collections.emptyNavigableMap();
+    }
+
+    /**
+     * Todos los nombres del historial conocidos
+     */
+    public List<String> allNames() {
+        List<String> names = new ArrayList<>();
+        for (ConcurrentSkipListMap<LocalDateTime, String> map : versions.values()) {
+            names.addAll(map.values());
+        }
+        return names;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public void markLoaded() {
+        loaded = true;
+    }
+
+    public int size() {
+        int total = 0;
+        for (ConcurrentSkipListMap<LocalDateTime, String> map : versions.values()) {
+            total += map.size();
+        }
+        return total;
+    }
+}
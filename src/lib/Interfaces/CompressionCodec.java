@@ -0,0 +1,33 @@
+package lib.Interfaces;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Algoritmo de compresion usable por CompressingFileTransferHandler. El id se
+ * guarda en la cabecera de cada archivo comprimido, asi que no debe cambiar
+ * una vez que haya archivos subidos con el.
+ */
+public interface CompressionCodec {
+
+    /**
+     * Identificador de un byte que se escribe en la cabecera
+     */
+    byte getId();
+
+    /**
+     * Nombre usado en config.properties
+     */
+    String getName();
+
+    /**
+     * Envuelve un flujo de salida para que lo que se escriba en el quede comprimido
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Envuelve un flujo de entrada comprimido con este codec
+     */
+    InputStream decompress(InputStream in) throws IOException;
+}
@@ -5,4 +5,10 @@ import lib.Enum.LocalEvent;
 
 public interface FileEventListener {
     void onFileEvent(LocalEvent eventType, Path filePath);
-}
\ No newline at end of file
+
+    /**
+     * Se llama cuando el Supervisor deja de observar el directorio
+     */
+    default void onWatchStopped() {
+    }
+}
@@ -2,10 +2,20 @@ package lib.Interfaces;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lib.Sync.FileMetadata;
 
 /**
  * Interfaz que define las operaciones básicas de transferencia de archivos
@@ -23,12 +33,87 @@ public interface FileTransferHandler {
      */
     boolean deleteFile(String remotePath) throws IOException;
 
+    /**
+     * Elimina un archivo del servidor remoto moviendo antes su copia actual
+     * al historial, como en un reemplazo
+     */
+    boolean deleteFileKeepingVersion(String remotePath) throws IOException;
+
 
     /**
      * Reemplaza un archivo en el servidor remoto
      */
     boolean replaceFile(File localFile, String remotePath) throws IOException;
 
+    /**
+     * Reemplaza un archivo guardando en el historial el contenido indicado en
+     * lugar de mover alli la copia remota actual
+     */
+    boolean replaceFileKeepingVersion(File localFile, String remotePath, File previousVersion) throws IOException;
+
+
+    /**
+     * Sube el contenido de un flujo al servidor remoto sin pasar por un archivo
+     * local. El flujo lo cierra quien lo abrio.
+     *
+     * Por defecto lo vuelca a un temporal y usa uploadFile; los manejadores que
+     * pueden enviar el flujo directamente lo sobrescriben.
+     */
+    default boolean uploadStream(InputStream in, String remotePath) throws IOException {
+        Path temp = Files.createTempFile("gitfp_", ".tmp");
+        try {
+            Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            return uploadFile(temp.toFile(), remotePath);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Sube de una vez varios archivos nuevos y pequeños. Los flujos los cierra
+     * quien los abrio.
+     *
+     * Por defecto los sube uno a uno con uploadStream; los manejadores que
+     * pueden empaquetarlos en una sola transferencia lo sobrescriben.
+     *
+     * @param members ruta remota -> contenido
+     * @return las rutas que se han subido
+     */
+    default Set<String> uploadBatch(Map<String, InputStream> members) throws IOException {
+        Set<String> uploaded = new HashSet<>();
+        for (Map.Entry<String, InputStream> member : members.entrySet()) {
+            if (uploadStream(member.getValue(), member.getKey())) {
+                uploaded.add(member.getKey());
+            }
+        }
+        return uploaded;
+    }
+
+    /**
+     * Reemplaza un archivo remoto con el contenido de un flujo
+     *
+     * @param previousVersion contenido a guardar en el historial, o null para
+     *                        mover alli la copia remota actual
+     */
+    default boolean replaceStream(InputStream in, String remotePath, InputStream previousVersion)
+            throws IOException {
+        Path temp = Files.createTempFile("gitfp_", ".tmp");
+        Path previous = null;
+        try {
+            Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            if (previousVersion == null) {
+                return replaceFile(temp.toFile(), remotePath);
+            }
+            previous = Files.createTempFile("gitfp_", ".tmp");
+            Files.copy(previousVersion, previous, StandardCopyOption.REPLACE_EXISTING);
+            return replaceFileKeepingVersion(temp.toFile(), remotePath, previous.toFile());
+        } finally {
+            Files.deleteIfExists(temp);
+            if (previous != null) {
+                Files.deleteIfExists(previous);
+            }
+        }
+    }
 
     /**
      * Lista los archivos en un directorio remoto
@@ -40,7 +125,44 @@ public interface FileTransferHandler {
      */
     boolean downloadFile(String remotePath, File localFile) throws IOException;
 
+    /**
+     * Descarga un archivo remoto escribiendo su contenido en un flujo. El
+     * flujo no se cierra.
+     *
+     * Por defecto descarga a un temporal y lo copia; los manejadores que
+     * pueden escribir directamente en el flujo lo sobrescriben.
+     */
+    default boolean downloadStream(String remotePath, OutputStream out) throws IOException {
+        Path temp = Files.createTempFile("gitfp_", ".tmp");
+        try {
+            if (!downloadFile(remotePath, temp.toFile())) {
+                return false;
+            }
+            Files.copy(temp, out);
+            return true;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
     HashMap<LocalDateTime, File> checkVersions(String fileName) throws IOException;
+
+    /**
+     * Identifica el contenido actual de un archivo remoto, para saber si ha
+     * cambiado desde la ultima vez: el hash que guarda el manifiesto o, sin
+     * el, su tamaño y fecha
+     *
+     * @return null si no existe o no se puede saber
+     */
+    String remoteFingerprint(String remotePath) throws IOException;
+
+    /**
+     * Obtiene en una sola pasada los metadatos de todos los archivos del
+     * directorio de trabajo remoto, sin incluir el historial
+     *
+     * @return mapa ruta relativa -> metadatos, o null si no se pudo leer
+     */
+    Map<String, FileMetadata> listRemoteTree() throws IOException;
     
     /**
      * Obtiene el nombre del manejador para logging
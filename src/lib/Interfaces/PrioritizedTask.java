@@ -0,0 +1,12 @@
+package lib.Interfaces;
+
+import lib.Enum.TransferPriority;
+
+/**
+ * Tarea que sabe con que prioridad pedira conexiones al pool, para que quien
+ * la ejecuta pueda tenerla en cuenta antes de que empiece
+ */
+public interface PrioritizedTask extends Runnable {
+
+    TransferPriority priority();
+}
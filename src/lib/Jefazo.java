@@ -1,11 +1,30 @@
 package lib;
 
 import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import lib.Enum.LocalEvent;
+import lib.Factory.FileTransferFactory;
+import lib.Interfaces.FileEventListener;
+import lib.Sync.ConnectionBoundExecutor;
+import lib.Sync.EventCoalescer;
+import lib.Sync.EventQueue;
+import lib.Sync.KeyedExecutor;
+import lib.Sync.Reconciler;
+import lib.Sync.EventQueue.PendingEvent;
 import lib.Utils.Logger;
 
 /**
@@ -25,8 +44,46 @@ public class Jefazo extends Thread {
      * Pool of MozoExecutors
      */
 
-    private ExecutorService obreros = Executors.newFixedThreadPool(10);
-    private ConcurrentHashMap<LocalEvent, File> todoHash = new ConcurrentHashMap<LocalEvent, File>();
+    private ExecutorService obreros = createExecutor();
+
+    /**
+     * Runs the Obreros of one path strictly in order (a DELETE never
+     * overtakes the upload before it) while different paths run in parallel
+     */
+    private final KeyedExecutor<Path> porRuta = new KeyedExecutor<>(obreros);
+
+    /**
+     * Pending events, one entry per path. Blocks the loop until there is work.
+     */
+    private final EventQueue todoQueue = new EventQueue(Configurador.getQueueCapacity());
+
+    /**
+     * New small files waiting to be uploaded together by one ObreroLote
+     * (sync.batch.enabled), and when the batch has to go even if not full
+     */
+    private final Set<Path> lote = new LinkedHashSet<>();
+    private long loteDeadline;
+
+    /**
+     * Pause before the first retry of an event that found no free FTP
+     * connection; it doubles with every further retry
+     */
+    private static final long RETRY_BACKOFF_MILLIS = 1000;
+
+    /**
+     * Times the events of each path have been re-queued for lack of a
+     * connection, until they are dispatched again
+     */
+    private final Map<Path, Integer> reintentos = new ConcurrentHashMap<>();
+
+    /**
+     * Puts those events back in the queue once their pause is over
+     */
+    private final ScheduledExecutorService reencolador = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "JefazoRetry");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     @Override
     public void run() {
@@ -35,26 +92,64 @@ public class Jefazo extends Thread {
         Logger.info("Jefazo initializing");
         supervisor = new Supervisor();
         Comunicador comunicador = new Comunicador(this);
-        supervisor.addListener(comunicador);
+        supervisor.addListener(createPipeline(comunicador));
         supervisor.start();
 
-        while (supervisor.isAlive()) {
+        try {
+            // Se vigila desde el principio; los eventos esperan en la cola
+            // hasta que el servidor esta listo
+            if (!awaitRemote()) {
+                obreros.shutdown();
+                return;
+            }
 
-            for (LocalEvent event : todoHash.keySet()) {
-                
-                Logger.info("Active Threads: " + Thread.activeCount());
-                File file = todoHash.get(event);
+            while (true) {
+                if (!lote.isEmpty() && System.currentTimeMillis() >= loteDeadline) {
+                    flushLote();
+                }
+                PendingEvent pending = lote.isEmpty() ? todoQueue.take()
+                        : todoQueue.poll(Math.max(0, loteDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (pending == null) {
+                    if (lote.isEmpty()) {
+                        break;
+                    }
+                    // Window over, or the queue was closed
+                    flushLote();
+                    continue;
+                }
 
+                Path path = pending.path();
+                Logger.info("Processing " + pending.events().size() + " event(s) for file " + path
+                        + " - pending paths: " + todoQueue.size());
 
-                Logger.info("Processing event " + event + " for file " + file.getName());
-                Obrero obrero = new Obrero(file, event);
-                obreros.execute(obrero);
-                removeTodoEvent(event);
-            }
+                if (isBatchable(pending)) {
+                    if (lote.isEmpty()) {
+                        loteDeadline = System.currentTimeMillis() + Configurador.getBatchWindowMillis();
+                    }
+                    lote.add(path);
+                    if (lote.size() >= Configurador.getBatchMaxFiles()) {
+                        flushLote();
+                    }
+                    continue;
+                }
+                if (lote.contains(path)) {
+                    // The batched upload must run before whatever comes next for this path
+                    flushLote();
+                }
 
+                int attempt = takeAttempts(path);
+                for (LocalEvent event : pending.events()) {
+                    Obrero obrero = new Obrero(path.toFile(), event, this, attempt);
+                    porRuta.execute(path, obrero);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Logger.error("Jefazo interrupted while waiting for events");
         }
 
         obreros.shutdown();
+        reencolador.shutdown();
         
     }
 
@@ -75,20 +170,169 @@ public class Jefazo extends Thread {
 
     }
 
-    public void addTodoEvent(LocalEvent event, File file) {
-        todoHash.put(event, file);
+    /**
+     * fixed: ten platform threads, as before. virtual: one virtual thread per
+     * Obrero, with as many running at once as the FTP pool has connections.
+     */
+    private static ExecutorService createExecutor() {
+        if (Configurador.getSyncExecutor().equals("virtual")) {
+            Logger.info("Running Obreros on virtual threads, bounded by FTP connection permits");
+            return new ConnectionBoundExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        }
+        return Executors.newFixedThreadPool(10);
+    }
+
+    /**
+     * Only new files small enough go into a batch: modified ones need their
+     * previous version moved to history, which is done file by file.
+     */
+    private boolean isBatchable(PendingEvent pending) {
+        if (!Configurador.isBatchEnabled()) {
+            return false;
+        }
+        for (LocalEvent event : pending.events()) {
+            if (event != LocalEvent.CREATE) {
+                return false;
+            }
+        }
+        File localFile = Paths.get("syncro", pending.path().toString()).toFile();
+        return localFile.isFile() && localFile.length() <= Configurador.getBatchMaxFileBytes();
+    }
+
+    /**
+     * Hands the current batch to an ObreroLote. It runs after any earlier
+     * Obrero of its paths, and later ones of those paths wait for it.
+     */
+    private void flushLote() {
+        if (lote.isEmpty()) {
+            return;
+        }
+        List<Path> paths = new ArrayList<>(lote);
+        lote.clear();
+        int attempt = 0;
+        for (Path path : paths) {
+            attempt = Math.max(attempt, takeAttempts(path));
+        }
+        Logger.info("Dispatching batch of " + paths.size() + " new files");
+        porRuta.execute(paths, new ObreroLote(paths, this, attempt));
+    }
+
+    /**
+     * Retries already used by the events of a path that is being dispatched
+     */
+    private int takeAttempts(Path path) {
+        Integer attempts = reintentos.remove(path);
+        return attempts == null ? 0 : attempts;
+    }
+
+    /**
+     * Called by an Obrero that found no free FTP connection. The event goes
+     * back to the queue after a pause that doubles with each retry, up to
+     * transfer.retries times; after that it is dropped and left for the
+     * startup reconciliation.
+     *
+     * @param attempt number of this retry, starting at 1
+     */
+    public void retry(LocalEvent event, Path path, int attempt) {
+        if (obreros.isShutdown()) {
+            Logger.warning("Dispatch stopped, dropping " + event + " for " + path);
+            return;
+        }
+        if (attempt > Configurador.getTransferRetries()) {
+            Logger.error("No FTP connection free for " + path + " after " + (attempt - 1) + " retries, dropping "
+                    + event);
+            return;
+        }
+        reintentos.merge(path, attempt, Math::max);
+        long delay = RETRY_BACKOFF_MILLIS << (attempt - 1);
+        Logger.warning("No FTP connection free for " + path + ", retrying " + event + " in " + delay + " ms");
+        try {
+            reencolador.schedule(() -> addTodoEvent(event, path), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Logger.warning("Dispatch stopped, dropping " + event + " for " + path);
+        }
+    }
+
+    /**
+     * Waits for FileTransferFactory to finish preparing the server.
+     *
+     * @return false if it could not be prepared
+     */
+    private boolean awaitRemote() throws InterruptedException {
+        try {
+            if (FileTransferFactory.ready().get()) {
+                return true;
+            }
+        } catch (ExecutionException e) {
+            Logger.error("Remote file systems failed to initialize: " + e.getCause().getMessage());
+            return false;
+        }
+        Logger.error("Remote file systems not available, local events will not be synced");
+        return false;
+    }
+
+    /**
+     * Puts the debouncing stage in front of the Comunicador when a quiet window
+     * is configured, so bursts of events for one path become a single Obrero.
+     */
+    private FileEventListener createPipeline(Comunicador comunicador) {
+        int debounceMillis = Configurador.getDebounceMillis();
+        if (debounceMillis <= 0) {
+            return comunicador;
+        }
+        EventCoalescer coalescer = new EventCoalescer(comunicador, debounceMillis,
+                Configurador.getDebounceMaxMillis());
+        coalescer.start();
+        Logger.info("Coalescing file events with a quiet window of " + debounceMillis + " ms");
+        return coalescer;
+    }
+
+    /**
+     * Compares syncro with the remote work directory in the background and
+     * queues whatever changed while GitFP was not running. Needs the remote
+     * file systems to be initialized.
+     */
+    public void reconcile() {
+        if (!Configurador.isReconcileOnStartup()) {
+            Logger.info("Startup reconciliation disabled");
+            return;
+        }
+        // Remote sizes only match local ones when files are stored as plain copies
+        boolean compareSizes = !Configurador.isEncryptionEnabled() && !Configurador.isCompressionEnabled()
+                && Configurador.getStorageMode().equals("full");
+        Reconciler reconciler = new Reconciler(Paths.get("syncro"), FileTransferFactory.getHandler(),
+                new Comunicador(this), compareSizes);
+        Thread thread = new Thread(reconciler, "Reconciler");
+        thread.setDaemon(true);
+        thread.start();
     }
 
-    public File getTodoEvent(LocalEvent event) {
-        return todoHash.get(event);
+    /**
+     * Queues an event. Blocks while the queue is full.
+     */
+    public void addTodoEvent(LocalEvent event, Path path) {
+        try {
+            if (!todoQueue.put(event, path)) {
+                Logger.warning("Event queue closed, dropping " + event + " for " + path);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Logger.error("Interrupted while queueing " + event + " for " + path);
+        }
     }
 
-    public void removeTodoEvent(LocalEvent event) {
-        todoHash.remove(event);
+    /**
+     * Number of paths with pending events
+     */
+    public int getPendingCount() {
+        return todoQueue.size();
     }
 
-    public boolean containsEvent(LocalEvent event) {
-        return todoHash.containsKey(event);
+    /**
+     * Stops accepting events. Pending ones are still dispatched.
+     */
+    public void stopDispatch() {
+        todoQueue.close();
     }
 
 }
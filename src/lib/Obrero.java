@@ -3,6 +3,7 @@ package lib;
 import java.io.File;
 
 import lib.Enum.LocalEvent;
+import lib.Enum.TransferPriority;
 
 import lib.Factory.FileTransferFactory;
 
@@ -12,78 +13,133 @@ import java.nio.file.Paths;
 import org.apache.commons.net.ftp.FTPClient;
 
 import lib.Utils.Logger;
+import lib.Connection.ConnectionTimeoutException;
 import lib.Interfaces.FileTransferHandler;
+import lib.Interfaces.PrioritizedTask;
+import lib.Sync.ContentHashIndex;
 
-public class Obrero implements Runnable {
+public class Obrero implements PrioritizedTask {
 
     private File file;
     private String fileName;
+    private String remotePath;
     private LocalEvent event;
     private FileTransferHandler transferHandler;
+    private ContentHashIndex hashIndex;
+    private final Jefazo jefazo;
+    private final int attempt;
 
-    public Obrero(File file, LocalEvent event) {
+    /**
+     * @param jefazo  a quien devolver el evento si no hay conexion libre
+     * @param attempt veces que este evento ya se ha reencolado por falta de
+     *                conexion
+     */
+    public Obrero(File file, LocalEvent event, Jefazo jefazo, int attempt) {
         this.file = file;
         this.fileName = file.getName();
+        // Ruta relativa a syncro, con separador remoto
+        this.remotePath = file.getPath().replace(File.separatorChar, '/');
         this.event = event;
         this.transferHandler = FileTransferFactory.getHandler();
+        this.hashIndex = Configurador.isHashIndexEnabled() ? ContentHashIndex.getInstance() : null;
+        this.jefazo = jefazo;
+        this.attempt = attempt;
     }
 
     @Override
     public void run() {
-        Logger.info("Obrero starting work on file: " + fileName + " for event: " + event);
+        Logger.info("Obrero starting work on file: " + remotePath + " for event: " + event);
 
         FTPClient ftpClient = null;
+        TransferPriority previous = TransferPriority.set(priority());
         try {
-            switch (event) {
-                case CREATE:
-                    Logger.info("Starting FTP upload for: " + fileName);
-                    uploadFile();
-                    break;
-                case MODIFY:
-                    Logger.info("Starting FTP replace for " + fileName);
-                    replaceFile();
-                    break;
-                case DELETE:
-                    Logger.info("Starting FTP delete for: " + fileName);
-                    deleteRemoteFile();
-                    break;
-                default:
-                    Logger.warning("Unsupported event: " + event);
-                    break;
+            process();
+        } catch (ConnectionTimeoutException e) {
+            // Cada operacion pide su conexion antes de escribir nada, asi que
+            // el evento se puede repetir entero. Se devuelve a Jefazo en lugar
+            // de esperar aqui, para soltar el hilo y el permiso de conexion.
+            if (Thread.currentThread().isInterrupted()) {
+                Logger.warning("Interrupted without an FTP connection, dropping " + event + " for " + remotePath);
+            } else {
+                jefazo.retry(event, Paths.get(remotePath), attempt + 1);
             }
         } catch (Exception e) {
-            Logger.error("Error processing " + event + " for " + fileName + ": " + e.getMessage());
+            Logger.error("Error processing " + event + " for " + remotePath + ": " + e.getMessage());
+        } finally {
+            TransferPriority.set(previous);
+        }
+    }
+
+    private void process() throws IOException {
+        switch (event) {
+            case CREATE:
+                Logger.info("Starting FTP upload for: " + remotePath);
+                uploadFile();
+                break;
+            case MODIFY:
+                Logger.info("Starting FTP replace for " + remotePath);
+                replaceFile();
+                break;
+            case DELETE:
+                Logger.info("Starting FTP delete for: " + remotePath);
+                deleteRemoteFile();
+                break;
+            default:
+                Logger.warning("Unsupported event: " + event);
+                break;
+        }
+    }
+
+    /**
+     * Los archivos grandes ceden las conexiones a los pequeños y a los borrados
+     */
+    @Override
+    public TransferPriority priority() {
+        if (event == LocalEvent.DELETE) {
+            return TransferPriority.SMALL_SYNC;
         }
+        File localFile = Paths.get("syncro", remotePath).toFile();
+        return localFile.length() >= Configurador.getLargeFileBytes() ? TransferPriority.LARGE_SYNC
+                : TransferPriority.SMALL_SYNC;
     }
 
     /**
      * Sube un archivo al servidor FTP
      */
     private void uploadFile() throws IOException {
-        File localFile = Paths.get("syncro", fileName).toFile();
-        String remotePath = fileName;
+        File localFile = Paths.get("syncro", remotePath).toFile();
 
         if (!localFile.exists()) {
             throw new IOException("Local file not found: " + localFile.getAbsolutePath());
         }
 
-        transferHandler.uploadFile(localFile, remotePath);
+        ContentHashIndex.Entry entry = hashIndex != null ? hashIndex.snapshot(remotePath, localFile) : null;
+
+        if (transferHandler.uploadFile(localFile, remotePath) && entry != null) {
+            hashIndex.record(remotePath, entry);
+        }
     }
 
-    private void replaceFile() {
+    private void replaceFile() throws IOException {
 
-        File localFile = Paths.get("syncro", fileName).toFile();
-        String remotePath = fileName;
+        File localFile = Paths.get("syncro", remotePath).toFile();
         
         if (!localFile.exists()) {
             Logger.error("Local file not found for replacing: " + localFile.getAbsolutePath());
             return;
         }
         
-        try {
-            transferHandler.replaceFile(localFile, remotePath);
-        } catch (IOException e) {
-            Logger.error("Error replacing file: " + e.getMessage());
+        ContentHashIndex.Entry entry = null;
+        if (hashIndex != null) {
+            if (hashIndex.isUnchanged(remotePath, localFile)) {
+                Logger.info("Content unchanged, skipping replace for: " + remotePath);
+                return;
+            }
+            entry = hashIndex.snapshot(remotePath, localFile);
+        }
+
+        if (transferHandler.replaceFile(localFile, remotePath) && entry != null) {
+            hashIndex.record(remotePath, entry);
         }
         
     }
@@ -92,8 +148,10 @@ public class Obrero implements Runnable {
      * Elimina un archivo en el servidor FTP
      */
     private void deleteRemoteFile() throws IOException {
-        String remotePath = fileName;
         transferHandler.deleteFile(remotePath);
+        if (hashIndex != null) {
+            hashIndex.remove(remotePath);
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,129 @@
+package lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lib.Connection.ConnectionTimeoutException;
+import lib.Enum.LocalEvent;
+import lib.Enum.TransferPriority;
+import lib.Factory.FileTransferFactory;
+import lib.Interfaces.FileTransferHandler;
+import lib.Interfaces.PrioritizedTask;
+import lib.Sync.ContentHashIndex;
+import lib.Utils.Logger;
+
+/**
+ * ObreroLote: sube de una vez varios archivos nuevos y pequeños, en lugar de
+ * un Obrero (con su conexion, STOR y registro en el manifiesto) por archivo.
+ */
+public class ObreroLote implements PrioritizedTask {
+
+    private final List<Path> files;
+    private final FileTransferHandler transferHandler;
+    private final ContentHashIndex hashIndex;
+    private final Jefazo jefazo;
+    private final int attempt;
+
+    /**
+     * @param files   rutas relativas a syncro
+     * @param jefazo  a quien devolver los archivos si no hay conexion libre
+     * @param attempt veces que estos archivos ya se han reencolado por falta
+     *                de conexion
+     */
+    public ObreroLote(List<Path> files, Jefazo jefazo, int attempt) {
+        this.files = files;
+        this.jefazo = jefazo;
+        this.attempt = attempt;
+        this.transferHandler = FileTransferFactory.getHandler();
+        this.hashIndex = Configurador.isHashIndexEnabled() ? ContentHashIndex.getInstance() : null;
+    }
+
+    @Override
+    public void run() {
+        Logger.info("ObreroLote starting batch upload of " + files.size() + " files");
+
+        TransferPriority previous = TransferPriority.set(priority());
+        try {
+            uploadBatch();
+        } catch (ConnectionTimeoutException e) {
+            // Cada archivo vuelve a la cola como CREATE y Jefazo forma otro lote
+            if (Thread.currentThread().isInterrupted()) {
+                Logger.warning("Interrupted without an FTP connection, dropping a batch of " + files.size()
+                        + " files");
+            } else {
+                for (Path path : files) {
+                    jefazo.retry(LocalEvent.CREATE, path, attempt + 1);
+                }
+            }
+        } catch (IOException e) {
+            Logger.error("Error uploading batch of " + files.size() + " files: " + e.getMessage());
+        } finally {
+            TransferPriority.set(previous);
+        }
+    }
+
+    /**
+     * Un lote solo lleva archivos pequeños
+     */
+    @Override
+    public TransferPriority priority() {
+        return TransferPriority.SMALL_SYNC;
+    }
+
+    private void uploadBatch() throws IOException {
+        Map<String, InputStream> members = new LinkedHashMap<>();
+        Map<String, ContentHashIndex.Entry> entries = new HashMap<>();
+        try {
+            for (Path path : files) {
+                String remotePath = path.toString().replace(File.separatorChar, '/');
+                File localFile = Paths.get("syncro", remotePath).toFile();
+                try {
+                    ContentHashIndex.Entry entry = hashIndex != null ? hashIndex.snapshot(remotePath, localFile) : null;
+                    members.put(remotePath, new FileInputStream(localFile));
+                    if (entry != null) {
+                        entries.put(remotePath, entry);
+                    }
+                } catch (FileNotFoundException | NoSuchFileException e) {
+                    // Borrado mientras esperaba en el lote
+                    Logger.warning("Local file not found, leaving it out of the batch: " + localFile.getAbsolutePath());
+                }
+            }
+
+            if (members.isEmpty()) {
+                return;
+            }
+
+            Set<String> uploaded = transferHandler.uploadBatch(members);
+            if (uploaded.size() < members.size()) {
+                Logger.error("Batch upload stored " + uploaded.size() + " of " + members.size() + " files");
+            }
+            if (hashIndex != null) {
+                for (String remotePath : uploaded) {
+                    ContentHashIndex.Entry entry = entries.get(remotePath);
+                    if (entry != null) {
+                        hashIndex.record(remotePath, entry);
+                    }
+                }
+            }
+        } finally {
+            for (InputStream in : members.values()) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Logger.warning("Error closing batch member: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
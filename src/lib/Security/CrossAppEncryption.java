@@ -6,6 +6,7 @@ import javax.crypto.*;
 import javax.crypto.spec.*;
 import java.io.*;
 import java.security.*;
+import java.util.Arrays;
 import java.util.Base64;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
@@ -17,7 +18,6 @@ public class CrossAppEncryption {
   
     private static final String ALGORITHM = "AES/GCM/NoPadding";
     private static final int GCM_TAG_LENGTH = 16;
-    private static final int GCM_IV_LENGTH = 12;
     private static final int KEY_SIZE = 256;
     private static final String KEY_DERIVATION_ALGORITHM = "PBKDF2WithHmacSHA256";
     private static final int ITERATION_COUNT = 65536;
@@ -30,120 +30,166 @@ public class CrossAppEncryption {
      */
 
     public static void encryptFile(File sourceFile, File destFile, String password) throws Exception {
-        // Salt aleatorio
-        byte[] salt = new byte[16];
-        SecureRandom random = new SecureRandom();
-        random.nextBytes(salt);
-        
-        SecretKey key = getKeyFromPassword(password, salt);
-        
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        random.nextBytes(iv);
-        
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, key, spec);
-        
-        // Añadir metadatos (formato del archivo)
-        // Los primeros bytes contienen: 
-        // - Marca de formato (4 bytes)
-        // - Longitud del salt (1 byte)
-        // - Salt
-        // - Longitud del IV (1 byte)
-        // - IV
-        
         try (FileInputStream inFile = new FileInputStream(sourceFile);
+             InputStream in = encryptStream(inFile, password);
              FileOutputStream outFile = new FileOutputStream(destFile)) {
-            
-            outFile.write("CAEF".getBytes(StandardCharsets.UTF_8)); // CrossApp Encryption Format
-            
-            // Escribir salt
-            outFile.write(salt.length);
-            outFile.write(salt);
-            
-            // Escribir IV
-            outFile.write(iv.length);
-            outFile.write(iv);
-            
-    
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = inFile.read(buffer)) != -1) {
-                byte[] output = cipher.update(buffer, 0, bytesRead);
-                if (output != null) {
-                    outFile.write(output);
-                }
-            }
-            
-            byte[] outputBytes = cipher.doFinal();
-            if (outputBytes != null) {
-                outFile.write(outputBytes);
-            }
+            in.transferTo(outFile);
         }
     }
+
+    /**
+     * Devuelve un flujo con el contenido de plainStream ya encriptado en
+     * formato CAEF v2 (ver SegmentedFormat). Se cifra a medida que se lee, asi
+     * que se puede pasar directamente a la subida sin archivo temporal.
+     * Cerrar el flujo devuelto cierra plainStream.
+     */
+    public static InputStream encryptStream(InputStream plainStream, String password)
+            throws GeneralSecurityException {
+        // Clave maestra de la sesion (PBKDF2 una sola vez) y salt propio del archivo
+        SessionKeys.MasterKey master = SessionKeys.sessionMaster(password);
+        byte[] fileSalt = SessionKeys.newFileSalt();
+        byte[] salt = new byte[master.salt().length + fileSalt.length];
+        System.arraycopy(master.salt(), 0, salt, 0, master.salt().length);
+        System.arraycopy(fileSalt, 0, salt, master.salt().length, fileSalt.length);
+
+        SegmentedFormat.Header header = SegmentedFormat.newHeader(SegmentedFormat.KDF_HKDF, salt,
+                new SecureRandom());
+        SecretKey key = SessionKeys.fileKey(master, fileSalt);
+
+        return new EncryptingInputStream(plainStream, key, header);
+    }
     
     /**
-     * Desencripta un archivo que fue encriptado por cualquier aplicación usando este sistema
+     * Desencripta un archivo que fue encriptado por cualquier aplicación usando
+     * este sistema, en formato v1 o v2
      * @param encryptedFile Archivo encriptado
      * @param destFile Archivo desencriptado resultante
      * @param password Contraseña utilizada para encriptar
      */
     public static void decryptFile(File encryptedFile, File destFile, String password) throws Exception {
-        try (FileInputStream inFile = new FileInputStream(encryptedFile);
-             FileOutputStream outFile = new FileOutputStream(destFile)) {
-            
+        try (FileInputStream inFile = new FileInputStream(encryptedFile)) {
+
             // Leer y verificar la marca de formato
             byte[] formatMark = new byte[4];
             inFile.read(formatMark);
             String format = new String(formatMark, StandardCharsets.UTF_8);
-            if (!"CAEF".equals(format)) {
+            if (!"CAEF".equals(format) && !"CAE2".equals(format)) {
                 throw new IllegalArgumentException("Formato de archivo no reconocido");
             }
-            
-            // Leer salt
-            int saltLength = inFile.read();
-            byte[] salt = new byte[saltLength];
-            inFile.read(salt);
-            
-            // Leer IV
-            int ivLength = inFile.read();
-            byte[] iv = new byte[ivLength];
-            inFile.read(iv);
-            
-            // Derivar la clave de la contraseña y salt
-            SecretKey key = getKeyFromPassword(password, salt);
-            
-            // Configurar descifrado
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-            cipher.init(Cipher.DECRYPT_MODE, key, spec);
-            
-            // Leer los datos encriptados y desencriptar
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = inFile.read(buffer)) != -1) {
-                byte[] output = cipher.update(buffer, 0, bytesRead);
-                if (output != null) {
-                    outFile.write(output);
+
+            try (DecryptingOutputStream out = decryptStream(new FileOutputStream(destFile), password)) {
+                out.write(formatMark);
+                inFile.transferTo(out);
+            }
+        }
+    }
+
+    /**
+     * Desencripta solo un rango de bytes del texto plano de un archivo v2,
+     * leyendo y verificando unicamente los segmentos que lo contienen
+     *
+     * @param offset posicion del primer byte en el texto plano
+     * @param length numero de bytes a escribir
+     * @return bytes escritos, menos de length si el archivo es mas corto
+     */
+    public static long decryptRange(File encryptedFile, long offset, long length, OutputStream out,
+            String password) throws IOException, GeneralSecurityException {
+        try (RandomAccessFile raf = new RandomAccessFile(encryptedFile, "r")) {
+            byte[] start = new byte[Math.min(64, (int) raf.length())];
+            raf.readFully(start);
+            int headerLength = SegmentedFormat.headerLength(start, start.length);
+            if (headerLength < 0 || headerLength > start.length) {
+                throw new IOException("Not a CAEF v2 file");
+            }
+            SegmentedFormat.Header header = SegmentedFormat.parse(Arrays.copyOf(start, headerLength));
+            SecretKey key = segmentKey(password, header);
+            Cipher cipher = SegmentedFormat.newCipher();
+
+            long body = raf.length() - headerLength;
+            int encryptedSegment = header.encryptedSegmentSize();
+            long segments = Math.max(1, (body + encryptedSegment - 1) / encryptedSegment);
+
+            byte[] segment = new byte[encryptedSegment];
+            byte[] plain = new byte[header.segmentSize()];
+            long written = 0;
+            long index = offset / header.segmentSize();
+            int skip = (int) (offset % header.segmentSize());
+
+            while (written < length && index < segments) {
+                long position = headerLength + index * encryptedSegment;
+                int segmentLength = (int) Math.min(encryptedSegment, raf.length() - position);
+                raf.seek(position);
+                raf.readFully(segment, 0, segmentLength);
+
+                int n = SegmentedFormat.decryptSegment(cipher, key, header, index, index == segments - 1,
+                        segment, 0, segmentLength, plain, 0);
+                int count = (int) Math.min(n - skip, length - written);
+                if (count <= 0) {
+                    break;
                 }
+                out.write(plain, skip, count);
+                written += count;
+                skip = 0;
+                index++;
             }
-            
-            byte[] outputBytes = cipher.doFinal();
-            if (outputBytes != null) {
-                outFile.write(outputBytes);
+            return written;
+        }
+    }
+
+    /**
+     * Devuelve un flujo que desencripta lo que se escribe en el y lo pasa a
+     * plainStream. Si el contenido no empieza por una marca CAEF se copia tal
+     * cual. Hay que llamar a finish() al terminar.
+     */
+    public static DecryptingOutputStream decryptStream(OutputStream plainStream, String password) {
+        return new DecryptingOutputStream(plainStream, password);
+    }
+
+    /**
+     * Clave de un archivo v2 segun el KDF indicado en su cabecera
+     */
+    static SecretKey segmentKey(String password, SegmentedFormat.Header header) throws GeneralSecurityException {
+        byte[] salt = header.salt();
+        if (header.kdf() == SegmentedFormat.KDF_PBKDF2) {
+            return getKeyFromPassword(password, salt);
+        }
+        if (header.kdf() == SegmentedFormat.KDF_HKDF) {
+            // El salt de la cabecera es el salt maestro seguido del del archivo
+            int masterLength = SessionKeys.saltLength();
+            if (salt.length <= masterLength) {
+                throw new GeneralSecurityException("Invalid key derivation salt");
             }
+            SessionKeys.MasterKey master = SessionKeys.master(password, Arrays.copyOf(salt, masterLength));
+            return SessionKeys.fileKey(master, Arrays.copyOfRange(salt, masterLength, salt.length));
         }
+        throw new GeneralSecurityException("Unknown key derivation: " + header.kdf());
     }
-    
+
+    /**
+     * Cipher v1 listo para desencriptar con la clave derivada de password y salt
+     */
+    static Cipher decryptCipher(String password, byte[] salt, byte[] iv) throws GeneralSecurityException {
+        SecretKey key = getKeyFromPassword(password, salt);
+        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
+        cipher.init(Cipher.DECRYPT_MODE, key, spec);
+        return cipher;
+    }
+
     /**
      * Deriva una clave segura a partir de una contraseña y salt usando PBKDF2
      */
     private static SecretKey getKeyFromPassword(String password, byte[] salt)
             throws NoSuchAlgorithmException, InvalidKeySpecException {
-        
+        return new SecretKeySpec(pbkdf2(password, salt), "AES");
+    }
+
+    /**
+     * PBKDF2 de la contraseña y el salt, en bytes
+     */
+    static byte[] pbkdf2(String password, byte[] salt) throws NoSuchAlgorithmException, InvalidKeySpecException {
         KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, ITERATION_COUNT, KEY_SIZE);
         SecretKeyFactory factory = SecretKeyFactory.getInstance(KEY_DERIVATION_ALGORITHM);
-        byte[] keyBytes = factory.generateSecret(spec).getEncoded();
-        return new SecretKeySpec(keyBytes, "AES");
+        return factory.generateSecret(spec).getEncoded();
     }
 }
\ No newline at end of file
@@ -0,0 +1,281 @@
+package lib.Security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Flujo de salida que recibe un archivo tal como viene del servidor y escribe
+ * en destino su contenido desencriptado. El formato se detecta con los
+ * primeros bytes: CAEF v2 (segmentado), CAEF v1 (un unico GCM) o, si no hay
+ * marca, contenido sin encriptar que se copia tal cual.
+ *
+ * En v2 los segmentos se verifican y escriben por lotes en cuanto llegan,
+ * desencriptando cada lote en paralelo, con memoria acotada por el lote. En
+ * v1 el Cipher retiene todo el texto hasta verificar la etiqueta al final.
+ *
+ * Hay que llamar a finish() al terminar para verificar lo que quede pendiente.
+ */
+public class DecryptingOutputStream extends OutputStream {
+
+    private static final byte[] V1_MARK = "CAEF".getBytes(StandardCharsets.UTF_8);
+
+    private enum Mode {
+        DETECTING, PLAIN, V1, V2
+    }
+
+    private final OutputStream out;
+    private final String password;
+    private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+    private Mode mode = Mode.DETECTING;
+    private boolean finished = false;
+
+    // v1
+    private Cipher v1Cipher;
+
+    // v2: lote de segmentos cifrados pendientes de desencriptar
+    private SegmentedFormat.Header v2Header;
+    private SecretKey v2Key;
+    private byte[][] segments;
+    private int[] segmentLengths;
+    private byte[][] plains;
+    private int[] plainLengths;
+    private int buffered = 0;
+    private long segmentIndex = 0;
+
+    public DecryptingOutputStream(OutputStream out, String password) {
+        this.out = out;
+        this.password = password;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Stream already finished");
+        }
+        while (len > 0 && mode == Mode.DETECTING) {
+            // Acumula la cabecera byte a byte hasta saber el formato y tener salt e IV
+            header.write(b[off]);
+            off++;
+            len--;
+            parseHeader();
+        }
+        if (len == 0) {
+            return;
+        }
+
+        switch (mode) {
+            case PLAIN -> out.write(b, off, len);
+            case V1 -> {
+                byte[] decrypted = v1Cipher.update(b, off, len);
+                if (decrypted != null && decrypted.length > 0) {
+                    out.write(decrypted);
+                }
+            }
+            case V2 -> writeSegments(b, off, len);
+            default -> throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Acumula segmentos cifrados en el lote. Un lote lleno solo se
+     * desencripta al llegar mas datos, porque hasta entonces no se sabe si su
+     * ultimo segmento es el ultimo del archivo.
+     */
+    private void writeSegments(byte[] b, int off, int len) throws IOException {
+        int segmentSize = v2Header.encryptedSegmentSize();
+        while (len > 0) {
+            if (buffered == segments.length && segmentLengths[buffered - 1] == segmentSize) {
+                decryptBatch(false);
+            }
+            if (buffered == 0 || segmentLengths[buffered - 1] == segmentSize) {
+                if (segments[buffered] == null) {
+                    segments[buffered] = new byte[segmentSize];
+                }
+                segmentLengths[buffered] = 0;
+                buffered++;
+            }
+            int slot = buffered - 1;
+            int n = Math.min(len, segmentSize - segmentLengths[slot]);
+            System.arraycopy(b, off, segments[slot], segmentLengths[slot], n);
+            segmentLengths[slot] += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Desencripta en paralelo los segmentos del lote y los escribe en orden
+     *
+     * @param lastBatch si el ultimo segmento del lote es el ultimo del archivo
+     */
+    private void decryptBatch(boolean lastBatch) throws IOException {
+        int count = buffered;
+        for (int i = 0; i < count; i++) {
+            if (segmentLengths[i] < SegmentedFormat.TAG_LENGTH) {
+                throw new IOException("Truncated encrypted segment");
+            }
+        }
+
+        long firstIndex = segmentIndex;
+        int lastSlot = lastBatch ? count - 1 : -1;
+        try {
+            SegmentWorkers.run(count, (i, cipher) -> {
+                if (plains[i] == null) {
+                    plains[i] = new byte[v2Header.segmentSize()];
+                }
+                plainLengths[i] = SegmentedFormat.decryptSegment(cipher, v2Key, v2Header, firstIndex + i,
+                        i == lastSlot, segments[i], 0, segmentLengths[i], plains[i], 0);
+            });
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Decryption failed between segments " + firstIndex + " and "
+                    + (firstIndex + count - 1) + ": " + e.getMessage(), e);
+        }
+
+        for (int i = 0; i < count; i++) {
+            out.write(plains[i], 0, plainLengths[i]);
+        }
+        segmentIndex += count;
+        buffered = 0;
+    }
+
+    private void parseHeader() throws IOException {
+        byte[] bytes = header.toByteArray();
+        int length = bytes.length;
+        int markLength = Math.min(length, V1_MARK.length);
+
+        if (Arrays.equals(bytes, 0, markLength, SegmentedFormat.MAGIC, 0, markLength)) {
+            int total = SegmentedFormat.headerLength(bytes, length);
+            if (total > 0 && length == total) {
+                startV2(bytes);
+            }
+            return;
+        }
+        if (Arrays.equals(bytes, 0, markLength, V1_MARK, 0, markLength)) {
+            parseV1Header(bytes);
+            return;
+        }
+
+        mode = Mode.PLAIN;
+        out.write(bytes);
+    }
+
+    private void startV2(byte[] bytes) throws IOException {
+        v2Header = SegmentedFormat.parse(bytes);
+        try {
+            v2Key = CrossAppEncryption.segmentKey(password, v2Header);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot initialize decryption", e);
+        }
+        int batch = SegmentWorkers.batchSize();
+        segments = new byte[batch][];
+        segmentLengths = new int[batch];
+        plains = new byte[batch][];
+        plainLengths = new int[batch];
+        mode = Mode.V2;
+    }
+
+    /**
+     * Lee la cabecera v1 "CAEF", longitud y salt, longitud e IV, en cuanto esta completa
+     */
+    private void parseV1Header(byte[] bytes) throws IOException {
+        int length = bytes.length;
+        if (length <= V1_MARK.length) {
+            return;
+        }
+
+        int saltLength = bytes[V1_MARK.length] & 0xff;
+        int ivLengthPos = V1_MARK.length + 1 + saltLength;
+        if (length <= ivLengthPos) {
+            return;
+        }
+        int ivLength = bytes[ivLengthPos] & 0xff;
+        if (length < ivLengthPos + 1 + ivLength) {
+            return;
+        }
+
+        byte[] salt = Arrays.copyOfRange(bytes, V1_MARK.length + 1, ivLengthPos);
+        byte[] iv = Arrays.copyOfRange(bytes, ivLengthPos + 1, ivLengthPos + 1 + ivLength);
+        try {
+            v1Cipher = CrossAppEncryption.decryptCipher(password, salt, iv);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot initialize decryption", e);
+        }
+        mode = Mode.V1;
+    }
+
+    /**
+     * Termina la desencriptacion. No cierra el flujo de destino.
+     *
+     * @throws IOException si el archivo esta truncado o no supera la
+     *                     verificacion de autenticacion
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        switch (mode) {
+            case DETECTING -> {
+                byte[] bytes = header.toByteArray();
+                if (bytes.length >= V1_MARK.length) {
+                    throw new IOException("Truncated encryption header");
+                }
+                // Archivo mas corto que la marca de formato: no esta encriptado
+                out.write(bytes);
+            }
+            case V1 -> {
+                try {
+                    byte[] decrypted = v1Cipher.doFinal();
+                    if (decrypted != null && decrypted.length > 0) {
+                        out.write(decrypted);
+                    }
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Decryption failed: " + e.getMessage(), e);
+                }
+            }
+            case V2 -> {
+                if (buffered == 0) {
+                    throw new IOException("Missing encrypted segments");
+                }
+                decryptBatch(true);
+            }
+            default -> {
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * true si el contenido recibido estaba encriptado
+     */
+    public boolean isEncrypted() {
+        return mode == Mode.V1 || mode == Mode.V2;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+}
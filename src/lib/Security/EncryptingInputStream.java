@@ -0,0 +1,158 @@
+package lib.Security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Flujo que entrega primero la cabecera CAEF v2 y despues el contenido del
+ * flujo original cifrado segmento a segmento. Permite subir un archivo
+ * cifrado sin escribir antes una copia cifrada en disco.
+ *
+ * Lee los segmentos por lotes y los cifra en paralelo (ver SegmentWorkers),
+ * entregandolos despues en orden. Lee un segmento por adelantado para saber
+ * cual es el ultimo, que va marcado en los datos autenticados.
+ */
+public class EncryptingInputStream extends InputStream {
+
+    private final InputStream source;
+    private final SecretKey key;
+    private final SegmentedFormat.Header header;
+    private final int segmentSize;
+
+    private final byte[][] plain;
+    private final int[] plainLength;
+    private final byte[][] encrypted;
+    private final int[] encryptedLength;
+
+    private byte[] ahead;
+    private int aheadLength = -1;
+    private long nextSegment = 0;
+
+    private byte[] headerBytes;
+    private int batchCount = 0;
+    private int current = 0;
+    private int currentPos = 0;
+    private boolean finished = false;
+
+    public EncryptingInputStream(InputStream source, SecretKey key, SegmentedFormat.Header header) {
+        this.source = source;
+        this.key = key;
+        this.header = header;
+        this.segmentSize = header.segmentSize();
+        this.headerBytes = header.encoded();
+
+        int batch = SegmentWorkers.batchSize();
+        this.plain = new byte[batch][];
+        this.plainLength = new int[batch];
+        this.encrypted = new byte[batch][];
+        this.encryptedLength = new int[batch];
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (headerBytes != null) {
+            int n = Math.min(len, headerBytes.length - currentPos);
+            System.arraycopy(headerBytes, currentPos, b, off, n);
+            currentPos += n;
+            if (currentPos == headerBytes.length) {
+                headerBytes = null;
+                currentPos = 0;
+            }
+            return n;
+        }
+
+        while (current >= batchCount || currentPos >= encryptedLength[current]) {
+            if (current < batchCount) {
+                current++;
+                currentPos = 0;
+                continue;
+            }
+            if (finished) {
+                return -1;
+            }
+            fillBatch();
+        }
+        int n = Math.min(len, encryptedLength[current] - currentPos);
+        System.arraycopy(encrypted[current], currentPos, b, off, n);
+        currentPos += n;
+        return n;
+    }
+
+    /**
+     * Lee el siguiente lote de segmentos y lo cifra
+     */
+    private void fillBatch() throws IOException {
+        int count = 0;
+        boolean last = false;
+        while (count < plain.length && !last) {
+            if (plain[count] == null) {
+                plain[count] = new byte[segmentSize];
+            }
+            last = readSegment(count);
+            count++;
+        }
+
+        long firstIndex = nextSegment;
+        int lastInBatch = last ? count - 1 : -1;
+        try {
+            SegmentWorkers.run(count, (i, cipher) -> {
+                if (encrypted[i] == null) {
+                    encrypted[i] = new byte[header.encryptedSegmentSize()];
+                }
+                encryptedLength[i] = SegmentedFormat.encryptSegment(cipher, key, header, firstIndex + i,
+                        i == lastInBatch, plain[i], 0, plainLength[i], encrypted[i], 0);
+            });
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Encryption failed", e);
+        }
+
+        nextSegment += count;
+        batchCount = count;
+        current = 0;
+        currentPos = 0;
+        finished = last;
+    }
+
+    /**
+     * Llena plain[slot] con el siguiente segmento
+     *
+     * @return true si es el ultimo segmento
+     */
+    private boolean readSegment(int slot) throws IOException {
+        if (aheadLength < 0) {
+            plainLength[slot] = source.readNBytes(plain[slot], 0, segmentSize);
+        } else {
+            byte[] swap = plain[slot];
+            plain[slot] = ahead;
+            ahead = swap;
+            plainLength[slot] = aheadLength;
+        }
+
+        if (plainLength[slot] < segmentSize) {
+            return true;
+        }
+        if (ahead == null) {
+            ahead = new byte[segmentSize];
+        }
+        aheadLength = source.readNBytes(ahead, 0, segmentSize);
+        return aheadLength == 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
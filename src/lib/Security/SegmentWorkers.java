@@ -0,0 +1,108 @@
+package lib.Security;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+
+import lib.Configurador;
+import lib.Utils.Logger;
+
+/**
+ * Pool fork-join compartido para cifrar y descifrar segmentos CAEF v2 en
+ * paralelo. Cada segmento se autentica por separado, asi que un lote de
+ * segmentos se reparte entre los nucleos y quien lo lanza escribe despues
+ * los resultados en orden.
+ */
+public final class SegmentWorkers {
+
+    /**
+     * Trabajo sobre el segmento i de un lote
+     */
+    @FunctionalInterface
+    public interface SegmentTask {
+        void run(int index, Cipher cipher) throws GeneralSecurityException;
+    }
+
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return SegmentedFormat.newCipher();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/GCM not available", e);
+        }
+    });
+
+    private static volatile ForkJoinPool pool;
+
+    private SegmentWorkers() {
+    }
+
+    /**
+     * Numero de segmentos que conviene leer por lote
+     */
+    public static int batchSize() {
+        int parallelism = parallelism();
+        return parallelism <= 1 ? 1 : parallelism * 4;
+    }
+
+    /**
+     * Ejecuta task para los segmentos 0..count-1 y espera a que terminen
+     * todos. Con un solo segmento o sin paralelismo se ejecuta en el hilo
+     * actual.
+     */
+    public static void run(int count, SegmentTask task) throws GeneralSecurityException {
+        if (count <= 1 || parallelism() <= 1) {
+            Cipher cipher = CIPHERS.get();
+            for (int i = 0; i < count; i++) {
+                task.run(i, cipher);
+            }
+            return;
+        }
+
+        List<Callable<Void>> calls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            calls.add(() -> {
+                task.run(index, CIPHERS.get());
+                return null;
+            });
+        }
+
+        for (Future<Void> future : pool().invokeAll(calls)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GeneralSecurityException("Interrupted while processing segments", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof GeneralSecurityException gse) {
+                    throw gse;
+                }
+                throw new GeneralSecurityException("Segment processing failed", e.getCause());
+            }
+        }
+    }
+
+    private static int parallelism() {
+        return Configurador.getEncryptionParallelism();
+    }
+
+    private static ForkJoinPool pool() {
+        ForkJoinPool current = pool;
+        if (current == null) {
+            synchronized (SegmentWorkers.class) {
+                if (pool == null) {
+                    pool = new ForkJoinPool(parallelism());
+                    Logger.info("Encrypting segments with parallelism " + pool.getParallelism());
+                }
+                current = pool;
+            }
+        }
+        return current;
+    }
+}
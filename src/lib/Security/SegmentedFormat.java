@@ -0,0 +1,168 @@
+package lib.Security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Formato CAEF v2: el contenido se divide en segmentos de tamaño fijo y cada
+ * uno se cifra con AES-GCM por separado, con su propio nonce y etiqueta. Asi
+ * se puede desencriptar en streaming con memoria constante y leer cualquier
+ * rango sin procesar el archivo entero.
+ *
+ * Cabecera: "CAE2", flags (KDF usado: PBKDF2 o HKDF), longitud del salt,
+ * salt, prefijo de nonce (8 bytes) y tamaño de segmento (int). Despues van los
+ * segmentos, cada uno con su texto cifrado y una etiqueta de 16 bytes; el
+ * indice de segmentos es implicito porque todos miden lo mismo salvo el ultimo.
+ *
+ * El nonce de cada segmento es el prefijo seguido del numero de segmento, y
+ * la cabecera mas un byte que marca el ultimo segmento van como datos
+ * autenticados: no se pueden reordenar, quitar ni truncar segmentos sin que
+ * falle la verificacion.
+ */
+public final class SegmentedFormat {
+
+    public static final byte[] MAGIC = "CAE2".getBytes(StandardCharsets.US_ASCII);
+    public static final int SEGMENT_SIZE = 64 * 1024;
+    public static final int TAG_LENGTH = 16;
+    public static final int NONCE_PREFIX_LENGTH = 8;
+
+    /**
+     * Clave derivada con PBKDF2 de la contraseña y el salt del archivo
+     */
+    public static final byte KDF_PBKDF2 = 0;
+
+    /**
+     * Clave de archivo derivada con HKDF de una clave maestra de sesion; el
+     * salt de la cabecera es el salt maestro seguido del salt del archivo
+     * (ver SessionKeys)
+     */
+    public static final byte KDF_HKDF = 1;
+
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+
+    /**
+     * Cabecera ya leida o generada
+     *
+     * @param encoded los bytes de la cabecera tal como van en el archivo
+     */
+    public record Header(byte kdf, byte[] salt, byte[] noncePrefix, int segmentSize, byte[] encoded) {
+
+        public int length() {
+            return encoded.length;
+        }
+
+        /**
+         * Tamaño de un segmento completo ya cifrado
+         */
+        public int encryptedSegmentSize() {
+            return segmentSize + TAG_LENGTH;
+        }
+    }
+
+    private SegmentedFormat() {
+    }
+
+    public static Header newHeader(byte kdf, byte[] salt, SecureRandom random) {
+        byte[] prefix = new byte[NONCE_PREFIX_LENGTH];
+        random.nextBytes(prefix);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeByte(kdf);
+            out.writeByte(salt.length);
+            out.write(salt);
+            out.write(prefix);
+            out.writeInt(SEGMENT_SIZE);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new Header(kdf, salt, prefix, SEGMENT_SIZE, bytes.toByteArray());
+    }
+
+    /**
+     * Longitud total de la cabecera a partir de sus primeros bytes
+     *
+     * @return la longitud, o -1 si todavia no hay bytes suficientes para saberla
+     */
+    public static int headerLength(byte[] partial, int available) {
+        int saltLengthPos = MAGIC.length + 1;
+        if (available <= saltLengthPos) {
+            return -1;
+        }
+        return saltLengthPos + 1 + (partial[saltLengthPos] & 0xff) + NONCE_PREFIX_LENGTH + 4;
+    }
+
+    /**
+     * Lee una cabecera completa
+     */
+    public static Header parse(byte[] encoded) throws IOException {
+        if (encoded.length < MAGIC.length || !Arrays.equals(encoded, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new IOException("Not a CAEF v2 file");
+        }
+        if (headerLength(encoded, encoded.length) != encoded.length) {
+            throw new IOException("Invalid CAEF v2 header");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(encoded, MAGIC.length, encoded.length - MAGIC.length);
+        byte kdf = buffer.get();
+        byte[] salt = new byte[buffer.get() & 0xff];
+        buffer.get(salt);
+        byte[] prefix = new byte[NONCE_PREFIX_LENGTH];
+        buffer.get(prefix);
+        int segmentSize = buffer.getInt();
+        if (segmentSize <= 0) {
+            throw new IOException("Invalid CAEF v2 segment size: " + segmentSize);
+        }
+        return new Header(kdf, salt, prefix, segmentSize, encoded.clone());
+    }
+
+    /**
+     * Cifra un segmento
+     *
+     * @return bytes escritos en out (len + TAG_LENGTH)
+     */
+    public static int encryptSegment(Cipher cipher, SecretKey key, Header header, long index, boolean last,
+            byte[] in, int off, int len, byte[] out, int outOff) throws GeneralSecurityException {
+        init(cipher, Cipher.ENCRYPT_MODE, key, header, index, last);
+        return cipher.doFinal(in, off, len, out, outOff);
+    }
+
+    /**
+     * Desencripta y verifica un segmento
+     *
+     * @return bytes de texto plano escritos en out
+     */
+    public static int decryptSegment(Cipher cipher, SecretKey key, Header header, long index, boolean last,
+            byte[] in, int off, int len, byte[] out, int outOff) throws GeneralSecurityException {
+        init(cipher, Cipher.DECRYPT_MODE, key, header, index, last);
+        return cipher.doFinal(in, off, len, out, outOff);
+    }
+
+    public static Cipher newCipher() throws GeneralSecurityException {
+        return Cipher.getInstance(ALGORITHM);
+    }
+
+    private static void init(Cipher cipher, int mode, SecretKey key, Header header, long index, boolean last)
+            throws GeneralSecurityException {
+        if (index < 0 || index > 0xffffffffL) {
+            throw new GeneralSecurityException("Too many segments");
+        }
+        byte[] nonce = ByteBuffer.allocate(NONCE_PREFIX_LENGTH + 4)
+                .put(header.noncePrefix())
+                .putInt((int) index)
+                .array();
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(header.encoded());
+        cipher.updateAAD(new byte[] { (byte) (last ? 1 : 0) });
+    }
+}
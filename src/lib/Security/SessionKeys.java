@@ -0,0 +1,131 @@
+package lib.Security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Jerarquia de claves para el formato v2: una clave maestra por sesion
+ * derivada de la contraseña con PBKDF2 (lento a proposito) y, a partir de
+ * ella, una clave por archivo con HKDF (barato). Asi PBKDF2 se ejecuta una vez
+ * por sesion en lugar de una vez por archivo.
+ *
+ * Cada archivo lleva en la cabecera el salt maestro con el que se creo, y las
+ * claves maestras ya derivadas se guardan en cache por salt, de modo que
+ * descargar muchos archivos subidos en la misma sesion tampoco repite PBKDF2.
+ */
+public final class SessionKeys {
+
+    private static final int SALT_LENGTH = 16;
+    private static final int MAX_CACHED_MASTERS = 64;
+    private static final byte[] FILE_KEY_INFO = "gitfp caef2 file key".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Clave maestra y el salt con el que se derivo
+     */
+    public record MasterKey(byte[] salt, byte[] key) {
+    }
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static volatile MasterKey sessionMaster;
+    private static volatile String sessionPasswordId;
+
+    /**
+     * Claves maestras ya derivadas, por salt y contraseña
+     */
+    private static final Map<String, MasterKey> CACHE = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MasterKey> eldest) {
+            return size() > MAX_CACHED_MASTERS;
+        }
+    };
+
+    private SessionKeys() {
+    }
+
+    /**
+     * Clave maestra con la que se encriptan los archivos de esta sesion. Se
+     * deriva la primera vez que se necesita.
+     */
+    public static MasterKey sessionMaster(String password) throws GeneralSecurityException {
+        String passwordId = passwordId(password);
+        MasterKey master = sessionMaster;
+        if (master != null && passwordId.equals(sessionPasswordId)) {
+            return master;
+        }
+        synchronized (SessionKeys.class) {
+            if (sessionMaster == null || !passwordId.equals(sessionPasswordId)) {
+                byte[] salt = new byte[SALT_LENGTH];
+                RANDOM.nextBytes(salt);
+                sessionMaster = master(password, salt);
+                sessionPasswordId = passwordId;
+            }
+            return sessionMaster;
+        }
+    }
+
+    /**
+     * Clave maestra para un salt concreto, desde la cache si ya se derivo
+     */
+    public static MasterKey master(String password, byte[] salt) throws GeneralSecurityException {
+        String cacheKey = passwordId(password) + ":" + HexFormat.of().formatHex(salt);
+        synchronized (CACHE) {
+            MasterKey cached = CACHE.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        // PBKDF2 fuera del candado para no bloquear a otros hilos con claves ya en cache
+        MasterKey master = new MasterKey(salt.clone(), CrossAppEncryption.pbkdf2(password, salt));
+        synchronized (CACHE) {
+            CACHE.putIfAbsent(cacheKey, master);
+            return CACHE.get(cacheKey);
+        }
+    }
+
+    /**
+     * Genera un salt nuevo para un archivo
+     */
+    public static byte[] newFileSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Clave AES de un archivo: HKDF-SHA256 de la clave maestra con el salt del archivo
+     */
+    public static SecretKey fileKey(MasterKey master, byte[] fileSalt) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+
+        // Extract
+        mac.init(new SecretKeySpec(fileSalt, "HmacSHA256"));
+        byte[] prk = mac.doFinal(master.key());
+
+        // Expand: un solo bloque basta para una clave de 32 bytes
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        mac.update(FILE_KEY_INFO);
+        mac.update((byte) 1);
+        return new SecretKeySpec(mac.doFinal(), "AES");
+    }
+
+    public static int saltLength() {
+        return SALT_LENGTH;
+    }
+
+    /**
+     * Identifica la contraseña en la cache sin guardarla en claro
+     */
+    private static String passwordId(String password) throws GeneralSecurityException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest);
+    }
+}
@@ -1,10 +1,17 @@
 package lib;
 
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import lib.Enum.LocalEvent;
+import lib.Handlers.ChunkedFileTransferHandler;
 import lib.Interfaces.FileEventListener;
 import lib.Utils.Logger;
 
@@ -14,8 +21,9 @@ import java.io.IOException;
 /**
  * OrejaListener
  * This class instantiates a Thread that will Listen to changes inside my
- * folder. It will be transfering those changes to the @MozoExecutor class which
- * will be in charge of executing the commands.
+ * folder and all its subfolders. It will be transfering those changes to the
+ * @MozoExecutor class which will be in charge of executing the commands.
+ * Paths are notified relative to the watched folder.
  */
 public class Supervisor extends Thread {
 
@@ -23,6 +31,20 @@ public class Supervisor extends Thread {
     Path directory = Paths.get("./syncro");
     private List<FileEventListener> listeners = new ArrayList<>();
 
+    /**
+     * Directorio observado por cada WatchKey
+     */
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+
+    /**
+     * Ultimo estado conocido de cada archivo (ruta relativa -> mtime) y de
+     * los directorios, para poder reescanear tras un OVERFLOW
+     */
+    private final Map<Path, Long> knownFiles = new HashMap<>();
+    private final Set<Path> knownDirs = new HashSet<>();
+
+    private WatchService watchService;
+
     public void addListener(FileEventListener listener) {
         listeners.add(listener);
     }
@@ -33,51 +55,248 @@ public class Supervisor extends Thread {
         }
     }
 
+    private void notifyStopped() {
+        for (FileEventListener listener : listeners) {
+            listener.onWatchStopped();
+        }
+    }
+
     @Override
     public void run() {
         try {
-            WatchService watchService = FileSystems.getDefault().newWatchService();
-            directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            watchService = FileSystems.getDefault().newWatchService();
+            registerTree(directory, false);
             System.out.println("La Oreja esta escuchando cambios en Local");
-    
+            Logger.info("Observando " + keys.size() + " directorios con " + knownFiles.size() + " archivos");
+
             while (on) {
-                WatchKey key = watchService.take(); 
-    
+                WatchKey key = watchService.take();
+                Path dir = keys.get(key);
+                if (dir == null) {
+                    key.cancel();
+                    continue;
+                }
+
                 for (WatchEvent<?> event : key.pollEvents()) {
                     WatchEvent.Kind<?> kind = event.kind();
+
+                    if (kind == OVERFLOW) {
+                        Logger.warning("OVERFLOW en " + dir + ", reescaneando el directorio");
+                        rescan(dir);
+                        continue;
+                    }
+
                     Path fileName = (Path) event.context();
-    
-                    
-                    Logger.info("Evento de sistema detectado - Tipo: " + kind.name() + " Archivo: " + fileName);
-    
+                    Path child = dir.resolve(fileName);
+                    Path relative = directory.relativize(child);
+
+
+                    Logger.info("Evento de sistema detectado - Tipo: " + kind.name() + " Archivo: " + relative);
+
                     if (fileName.toString().equals(".DS_Store")) {
                         System.out.println("Ignorando archivo de sistema macOS: .DS_Store");
                         continue;
                     }
-    
-                    System.out.println(kind.name() + ": " + fileName);
+                    if (isReserved(relative)) {
+                        Logger.warning("Ignorando " + relative + ": nombre reservado por GitFP");
+                        continue;
+                    }
+
+                    System.out.println(kind.name() + ": " + relative);
                     if (kind == ENTRY_CREATE) {
-                        System.out.println("El archivo " + fileName + " ha sido creado");
-                        notifyListeners(LocalEvent.CREATE, fileName);
+                        if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                            System.out.println("El directorio " + relative + " ha sido creado");
+                            registerTree(child, true);
+                        } else {
+                            System.out.println("El archivo " + relative + " ha sido creado");
+                            knownFiles.put(relative, lastModified(child));
+                            notifyListeners(LocalEvent.CREATE, relative);
+                        }
                     } else if (kind == ENTRY_DELETE) {
-                        System.out.println("El archivo " + fileName + " ha sido eliminado");
-                        notifyListeners(LocalEvent.DELETE, fileName);
+                        if (knownDirs.contains(relative)) {
+                            System.out.println("El directorio " + relative + " ha sido eliminado");
+                            forgetTree(relative);
+                        } else {
+                            System.out.println("El archivo " + relative + " ha sido eliminado");
+                            knownFiles.remove(relative);
+                            notifyListeners(LocalEvent.DELETE, relative);
+                        }
                     } else if (kind == ENTRY_MODIFY) {
-                        System.out.println("El archivo " + fileName + " ha sido modificado");
-                        Logger.info("Notificando evento MODIFY para: " + fileName);
-                        notifyListeners(LocalEvent.MODIFY, fileName);
-                    } 
+                        if (knownDirs.contains(relative)) {
+                            continue;
+                        }
+                        System.out.println("El archivo " + relative + " ha sido modificado");
+                        Logger.info("Notificando evento MODIFY para: " + relative);
+                        knownFiles.put(relative, lastModified(child));
+                        notifyListeners(LocalEvent.MODIFY, relative);
+                    }
                 }
-    
+
                 boolean valid = key.reset();
                 if (!valid) {
-                    break; 
+                    keys.remove(key);
+                    if (keys.isEmpty()) {
+                        break;
+                    }
                 }
             }
         } catch (IOException e) {
             Logger.error("Error al registrar el directorio: " + e.getMessage());
         } catch (InterruptedException e) {
             Logger.error("Interrupción al observar el directorio: " + e.getMessage());
+        } finally {
+            notifyStopped();
+        }
+    }
+
+    /**
+     * Registra un directorio y todos sus subdirectorios en el WatchService.
+     *
+     * @param emitEvents true si los archivos encontrados deben notificarse como
+     *                   CREATE (directorios creados en caliente, cuyo contenido
+     *                   pudo escribirse antes de registrarlos)
+     */
+    private void registerTree(Path start, boolean emitEvents) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (isReserved(directory.relativize(dir))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                WatchKey key;
+                try {
+                    key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                } catch (IOException e) {
+                    if (dir.equals(directory)) {
+                        throw e;
+                    }
+                    // Borrado justo despues de crearse, o sin permisos: se
+                    // sigue vigilando el resto del arbol
+                    Logger.warning("No se pudo vigilar " + dir + ": " + e.getMessage());
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                keys.put(key, dir);
+                if (!dir.equals(directory)) {
+                    knownDirs.add(directory.relativize(dir));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile() || file.getFileName().toString().equals(".DS_Store")) {
+                    return FileVisitResult.CONTINUE;
+                }
+                Path relative = directory.relativize(file);
+                Long previous = knownFiles.put(relative, attrs.lastModifiedTime().toMillis());
+                if (emitEvents && previous == null) {
+                    notifyListeners(LocalEvent.CREATE, relative);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                Logger.warning("No se pudo leer " + file + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Olvida un directorio borrado y notifica DELETE para los archivos que
+     * contenia y de los que no ha llegado evento propio
+     */
+    private void forgetTree(Path relativeDir) {
+        knownDirs.removeIf(dir -> dir.startsWith(relativeDir));
+        Iterator<Path> it = knownFiles.keySet().iterator();
+        while (it.hasNext()) {
+            Path file = it.next();
+            if (file.startsWith(relativeDir)) {
+                it.remove();
+                notifyListeners(LocalEvent.DELETE, file);
+            }
+        }
+    }
+
+    /**
+     * Compara el contenido actual de un directorio con el ultimo estado conocido
+     * y genera los eventos que el OVERFLOW ha hecho perder
+     */
+    private void rescan(Path dir) {
+        Path relativeDir = directory.relativize(dir);
+        Set<Path> seen = new HashSet<>();
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path child : entries) {
+                Path relative = directory.relativize(child);
+                if (child.getFileName().toString().equals(".DS_Store") || isReserved(relative)) {
+                    continue;
+                }
+                if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    if (!knownDirs.contains(relative)) {
+                        registerTree(child, true);
+                    }
+                    seen.add(relative);
+                    continue;
+                }
+                seen.add(relative);
+                long modified = lastModified(child);
+                Long previous = knownFiles.put(relative, modified);
+                if (previous == null) {
+                    notifyListeners(LocalEvent.CREATE, relative);
+                } else if (previous != modified) {
+                    notifyListeners(LocalEvent.MODIFY, relative);
+                }
+            }
+        } catch (IOException e) {
+            Logger.error("Error al reescanear " + dir + ": " + e.getMessage());
+            return;
+        }
+
+        List<Path> gone = new ArrayList<>();
+        for (Path file : knownFiles.keySet()) {
+            if (isDirectChild(relativeDir, file) && !seen.contains(file)) {
+                gone.add(file);
+            }
+        }
+        for (Path file : gone) {
+            knownFiles.remove(file);
+            notifyListeners(LocalEvent.DELETE, file);
+        }
+
+        List<Path> goneDirs = new ArrayList<>();
+        for (Path knownDir : knownDirs) {
+            if (isDirectChild(relativeDir, knownDir) && !seen.contains(knownDir)) {
+                goneDirs.add(knownDir);
+            }
+        }
+        for (Path goneDir : goneDirs) {
+            forgetTree(goneDir);
+        }
+    }
+
+    /**
+     * Rutas que GitFP usa en el directorio remoto para si mismo y que no se
+     * sincronizan aunque existan en local
+     */
+    private static boolean isReserved(Path relative) {
+        return relative.startsWith(ChunkedFileTransferHandler.CHUNK_DIR);
+    }
+
+    private static boolean isDirectChild(Path relativeDir, Path path) {
+        Path parent = path.getParent();
+        if (relativeDir.toString().isEmpty()) {
+            return parent == null;
+        }
+        return relativeDir.equals(parent);
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0L;
         }
     }
 
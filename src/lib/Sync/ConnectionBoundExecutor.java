@@ -0,0 +1,84 @@
+package lib.Sync;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lib.Connection.FTPConnectionPool;
+import lib.Connection.PriorityPermits;
+import lib.Enum.TransferPriority;
+import lib.Interfaces.PrioritizedTask;
+import lib.Utils.Logger;
+
+/**
+ * Ejecuta cada tarea en su propio hilo (pensado para hilos virtuales), pero
+ * deja correr a la vez solo tantas como conexiones permite el pool. Las
+ * demas esperan aparcadas, sin limite de tiempo y sin ocupar un hilo de
+ * plataforma, en lugar de agotar el timeout de getConnection.
+ *
+ * Los permisos se reparten como las conexiones del pool: por la prioridad de
+ * cada tarea (PrioritizedTask) y con las mismas reservas, para que las
+ * transferencias grandes no ocupen todos los huecos mientras las pequeñas
+ * esperan detras con una conexion reservada libre.
+ */
+public class ConnectionBoundExecutor extends AbstractExecutorService {
+
+    private final ExecutorService delegate;
+    private final PriorityPermits permits;
+
+    public ConnectionBoundExecutor(ExecutorService delegate) {
+        this.delegate = delegate;
+        this.permits = FTPConnectionPool.createPermits(FTPConnectionPool.getInstance().getPoolSize());
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        delegate.execute(() -> {
+            // Los permisos se piden con la prioridad de la tarea
+            TransferPriority previous = TransferPriority.set(command instanceof PrioritizedTask task
+                    ? task.priority()
+                    : TransferPriority.current());
+            try {
+                // El pool cambia de tamaño en caliente
+                permits.setLimit(FTPConnectionPool.getInstance().getPoolSize());
+                permits.acquire();
+                try {
+                    command.run();
+                } finally {
+                    permits.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Logger.warning("Interrupted while waiting for a connection permit");
+            } finally {
+                TransferPriority.set(previous);
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,221 @@
+package lib.Sync;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lib.Utils.Logger;
+
+/**
+ * Indice local persistente ruta -> (tamaño, mtime, SHA-256) del ultimo
+ * contenido subido. Permite saltarse las subidas cuyo contenido no ha
+ * cambiado (touch, escrituras de metadatos, editores que reescriben lo mismo).
+ *
+ * Se guarda como un log de solo-añadir en .gitfp/index.log que se compacta al
+ * cargar cuando acumula demasiadas lineas obsoletas.
+ */
+public class ContentHashIndex {
+
+    /**
+     * Estado de un archivo en el momento de leerlo
+     */
+    public record Entry(long size, long modified, String hash) {
+    }
+
+    private static final Path INDEX_FILE = Paths.get(".gitfp", "index.log");
+    private static final int COMPACT_MIN_LINES = 1000;
+
+    private static ContentHashIndex instance;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Hashes calculados al comprobar cambios, reutilizables al registrar la subida
+     */
+    private final Map<String, Entry> computed = new ConcurrentHashMap<>();
+
+    private BufferedWriter writer;
+
+    private ContentHashIndex() {
+        load();
+    }
+
+    public static synchronized ContentHashIndex getInstance() {
+        if (instance == null) {
+            instance = new ContentHashIndex();
+        }
+        return instance;
+    }
+
+    /**
+     * Indica si el archivo tiene el mismo contenido que la ultima vez que se
+     * subio. Solo calcula el hash si coincide el tamaño pero no la fecha.
+     */
+    public boolean isUnchanged(String path, File file) throws IOException {
+        Entry known = entries.get(path);
+        if (known == null) {
+            return false;
+        }
+
+        long size = file.length();
+        long modified = file.lastModified();
+        if (size != known.size()) {
+            return false;
+        }
+        if (modified == known.modified()) {
+            return true;
+        }
+
+        Entry current = new Entry(size, modified, hash(file));
+        if (current.hash().equals(known.hash())) {
+            // Mismo contenido con otra fecha: actualizamos para no volver a calcularlo
+            put(path, current);
+            return true;
+        }
+        computed.put(path, current);
+        return false;
+    }
+
+    /**
+     * Lee el estado actual del archivo, reutilizando el hash si ya se calculo
+     * para este mismo tamaño y fecha
+     */
+    public Entry snapshot(String path, File file) throws IOException {
+        long size = file.length();
+        long modified = file.lastModified();
+        Entry cached = computed.remove(path);
+        if (cached != null && cached.size() == size && cached.modified() == modified) {
+            return cached;
+        }
+        return new Entry(size, modified, hash(file));
+    }
+
+    /**
+     * Registra el contenido que se acaba de subir
+     */
+    public void record(String path, Entry entry) {
+        put(path, entry);
+    }
+
+    public void remove(String path) {
+        computed.remove(path);
+        if (entries.remove(path) != null) {
+            append("D\t" + path);
+        }
+    }
+
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    private void put(String path, Entry entry) {
+        entries.put(path, entry);
+        append("P\t" + entry.size() + "\t" + entry.modified() + "\t" + entry.hash() + "\t" + path);
+    }
+
+    private synchronized void append(String line) {
+        try {
+            if (writer == null) {
+                Files.createDirectories(INDEX_FILE.getParent());
+                writer = Files.newBufferedWriter(INDEX_FILE, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            Logger.error("Error writing hash index: " + e.getMessage());
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(INDEX_FILE)) {
+            return;
+        }
+
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(INDEX_FILE, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                String[] parts = line.split("\t", 5);
+                try {
+                    if (parts[0].equals("P") && parts.length == 5) {
+                        entries.put(parts[4], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]));
+                    } else if (parts[0].equals("D") && parts.length == 2) {
+                        entries.remove(parts[1]);
+                    }
+                } catch (NumberFormatException e) {
+                    // Linea truncada por un cierre abrupto, se descarta
+                }
+            }
+        } catch (IOException e) {
+            Logger.error("Error reading hash index: " + e.getMessage());
+            return;
+        }
+
+        Logger.info("Hash index loaded: " + entries.size() + " entries from " + lines + " lines");
+        if (lines > COMPACT_MIN_LINES && lines > entries.size() * 2) {
+            compact();
+        }
+    }
+
+    /**
+     * Reescribe el log con una sola linea por ruta y lo sustituye de forma atomica
+     */
+    private synchronized void compact() {
+        Path temp = INDEX_FILE.resolveSibling("index.log.tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.write("P\t" + entry.size() + "\t" + entry.modified() + "\t" + entry.hash() + "\t" + e.getKey());
+                out.newLine();
+            }
+        } catch (IOException e) {
+            Logger.error("Error compacting hash index: " + e.getMessage());
+            return;
+        }
+
+        try {
+            Files.move(temp, INDEX_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Logger.info("Hash index compacted to " + entries.size() + " entries");
+        } catch (IOException e) {
+            Logger.error("Error replacing hash index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * SHA-256 del contenido del archivo en hexadecimal
+     */
+    public static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
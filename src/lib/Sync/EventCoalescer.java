@@ -0,0 +1,173 @@
+package lib.Sync;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import lib.Enum.LocalEvent;
+import lib.Interfaces.FileEventListener;
+import lib.Utils.Logger;
+
+/**
+ * Etapa de agrupado entre el Supervisor y el Comunicador. Retiene los eventos
+ * de cada ruta hasta que pasa una ventana sin actividad, o como mucho un
+ * tiempo maximo desde el primero para que un archivo que no deja de
+ * escribirse (un log) tambien se sincronice, y los fusiona en uno solo antes
+ * de reenviarlo:
+ * CREATE+MODIFY = CREATE, CREATE+DELETE = nada, MODIFY+DELETE = DELETE,
+ * DELETE+CREATE = MODIFY.
+ */
+public final class EventCoalescer extends Thread implements FileEventListener {
+
+    private static class Pending {
+        final LocalEvent event;
+        final long firstSeen;
+        final long lastSeen;
+
+        Pending(LocalEvent event, long firstSeen, long lastSeen) {
+            this.event = event;
+            this.firstSeen = firstSeen;
+            this.lastSeen = lastSeen;
+        }
+
+        /**
+         * Cuando hay que reenviarlo si no llegan mas eventos
+         */
+        long dueNanos(long quietNanos, long maxDelayNanos) {
+            return Math.min(lastSeen + quietNanos, firstSeen + maxDelayNanos);
+        }
+    }
+
+    private static class Tick implements Delayed {
+        final Path path;
+        final long dueNanos;
+
+        Tick(Path path, long dueNanos) {
+            this.path = path;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    private final FileEventListener downstream;
+    private final long quietNanos;
+    private final long maxDelayNanos;
+    private final ConcurrentHashMap<Path, Pending> pendientes = new ConcurrentHashMap<>();
+    private final DelayQueue<Tick> ticks = new DelayQueue<>();
+
+    /**
+     * @param maxDelayMillis espera maxima desde el primer evento retenido,
+     *                       aunque sigan llegando
+     */
+    public EventCoalescer(FileEventListener downstream, long quietMillis, long maxDelayMillis) {
+        super("EventCoalescer");
+        setDaemon(true);
+        this.downstream = downstream;
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(quietMillis, maxDelayMillis));
+    }
+
+    /**
+     * Fusiona dos eventos consecutivos de la misma ruta.
+     *
+     * @return el evento resultante, o null si se anulan entre si
+     */
+    static LocalEvent merge(LocalEvent previous, LocalEvent next) {
+        switch (previous) {
+            case CREATE:
+                return next == LocalEvent.DELETE ? null : LocalEvent.CREATE;
+            case DELETE:
+                return next == LocalEvent.DELETE ? LocalEvent.DELETE : LocalEvent.MODIFY;
+            case MODIFY:
+                return next == LocalEvent.DELETE ? LocalEvent.DELETE : LocalEvent.MODIFY;
+            default:
+                return next;
+        }
+    }
+
+    @Override
+    public void onFileEvent(LocalEvent eventType, Path filePath) {
+        long now = System.nanoTime();
+        boolean[] created = new boolean[1];
+
+        pendientes.compute(filePath, (path, previous) -> {
+            if (previous == null) {
+                created[0] = true;
+                return new Pending(eventType, now, now);
+            }
+            LocalEvent merged = merge(previous.event, eventType);
+            if (merged == null) {
+                Logger.info("Eventos anulados para " + path + ": " + previous.event + " + " + eventType);
+                return null;
+            }
+            return new Pending(merged, previous.firstSeen, now);
+        });
+
+        if (created[0]) {
+            ticks.put(new Tick(filePath, now + quietNanos));
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted()) {
+                Tick tick = ticks.take();
+                long now = System.nanoTime();
+                Pending[] ready = new Pending[1];
+
+                pendientes.computeIfPresent(tick.path, (path, pending) -> {
+                    if (now - pending.dueNanos(quietNanos, maxDelayNanos) >= 0) {
+                        ready[0] = pending;
+                        return null;
+                    }
+                    return pending;
+                });
+
+                if (ready[0] != null) {
+                    downstream.onFileEvent(ready[0].event, tick.path);
+                } else {
+                    Pending pending = pendientes.get(tick.path);
+                    if (pending != null) {
+                        ticks.put(new Tick(tick.path, pending.dueNanos(quietNanos, maxDelayNanos)));
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Parada solicitada
+        }
+    }
+
+    /**
+     * Reenvia inmediatamente todo lo pendiente y propaga la parada
+     */
+    @Override
+    public void onWatchStopped() {
+        interrupt();
+        for (Path path : pendientes.keySet()) {
+            Pending pending = pendientes.remove(path);
+            if (pending != null) {
+                downstream.onFileEvent(pending.event, path);
+            }
+        }
+        downstream.onWatchStopped();
+    }
+
+    /**
+     * Numero de rutas retenidas esperando la ventana de silencio
+     */
+    public int getHeldCount() {
+        return pendientes.size();
+    }
+}
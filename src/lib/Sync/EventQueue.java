@@ -0,0 +1,156 @@
+package lib.Sync;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lib.Enum.LocalEvent;
+
+/**
+ * Cola bloqueante y acotada de eventos pendientes, indexada por ruta.
+ * Cada ruta ocupa una sola entrada y conserva todos sus eventos en orden de
+ * llegada, de modo que dos archivos modificados a la vez nunca se pisan.
+ * La capacidad limita el numero de rutas distintas pendientes; los eventos
+ * de una ruta que ya esta en cola no consumen capacidad.
+ */
+public class EventQueue {
+
+    /**
+     * Eventos pendientes de una misma ruta, en orden de llegada
+     */
+    public record PendingEvent(Path path, List<LocalEvent> events) {
+    }
+
+    private final LinkedHashMap<Path, ArrayDeque<LocalEvent>> pendientes = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final int capacity;
+    private boolean closed = false;
+
+    public EventQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("La capacidad de la cola debe ser positiva: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Encola un evento. Bloquea si la cola esta llena y la ruta no tenia
+     * eventos pendientes.
+     *
+     * @return false si la cola ya esta cerrada
+     */
+    public boolean put(LocalEvent event, Path path) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            ArrayDeque<LocalEvent> eventos = pendientes.get(path);
+            while (eventos == null && pendientes.size() >= capacity && !closed) {
+                notFull.await();
+                eventos = pendientes.get(path);
+            }
+            if (closed) {
+                return false;
+            }
+            if (eventos == null) {
+                eventos = new ArrayDeque<>();
+                pendientes.put(path, eventos);
+            }
+            eventos.add(event);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saca la ruta pendiente mas antigua junto con todos sus eventos.
+     * Bloquea hasta que haya trabajo.
+     *
+     * @return null si la cola esta cerrada y vacia
+     */
+    public PendingEvent take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (pendientes.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return removeHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Como take, pero esperando como mucho timeout
+     *
+     * @return null si se agota el tiempo o si la cola esta cerrada y vacia
+     */
+    public PendingEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (pendientes.isEmpty() && !closed) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return removeHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saca la ruta mas antigua, o null si no hay ninguna. Llamar con el lock.
+     */
+    private PendingEvent removeHead() {
+        if (pendientes.isEmpty()) {
+            return null;
+        }
+        Iterator<Map.Entry<Path, ArrayDeque<LocalEvent>>> it = pendientes.entrySet().iterator();
+        Map.Entry<Path, ArrayDeque<LocalEvent>> head = it.next();
+        it.remove();
+        notFull.signal();
+        return new PendingEvent(head.getKey(), List.copyOf(head.getValue()));
+    }
+
+    /**
+     * Numero de rutas con eventos pendientes
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return pendientes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Cierra la cola: los productores dejan de encolar y los consumidores
+     * terminan de vaciar lo pendiente antes de recibir null.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
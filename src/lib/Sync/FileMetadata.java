@@ -0,0 +1,11 @@
+package lib.Sync;
+
+/**
+ * Metadatos minimos de un archivo, local o remoto, usados para comparar arboles.
+ *
+ * @param path     ruta relativa al directorio sincronizado, con separador '/'
+ * @param size     tamaño en bytes
+ * @param modified fecha de modificacion en milisegundos desde epoch
+ */
+public record FileMetadata(String path, long size, long modified) {
+}
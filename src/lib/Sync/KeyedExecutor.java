@@ -0,0 +1,116 @@
+package lib.Sync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import lib.Enum.TransferPriority;
+import lib.Interfaces.PrioritizedTask;
+import lib.Utils.Logger;
+
+/**
+ * Ejecuta tareas sobre un Executor manteniendo el orden entre las tareas de
+ * una misma clave: cada clave tiene su propia cadena de CompletableFuture y
+ * una tarea nueva se engancha al final de la de su clave. Las tareas de
+ * claves distintas no se esperan entre si.
+ *
+ * No hay bloqueo global: el mapa de colas es concurrente y una cadena se
+ * borra sola al terminar su ultima tarea.
+ */
+public class KeyedExecutor<K> {
+
+    private final Executor executor;
+    private final ConcurrentHashMap<K, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+    public KeyedExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Programa la tarea para despues de las ya enviadas con la misma clave
+     */
+    public void execute(K key, Runnable task) {
+        Runnable safe = () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // Un fallo no debe cortar la cadena de las siguientes
+                Logger.error("Task for " + key + " failed: " + e.getMessage());
+            }
+        };
+
+        Executor target = executorFor(task);
+        CompletableFuture<Void> tail = tails.compute(key, (k, previous) -> previous == null
+                ? CompletableFuture.runAsync(safe, target)
+                : previous.thenRunAsync(safe, target));
+        tail.whenComplete((ignored, error) -> tails.remove(key, tail));
+    }
+
+    /**
+     * Programa una tarea que afecta a varias claves: empieza cuando han
+     * terminado las anteriores de todas ellas, y las siguientes de cualquiera
+     * de ellas la esperan.
+     *
+     * Estas tareas se registran de una en una para que dos con claves en
+     * comun no puedan quedar esperandose mutuamente.
+     */
+    public synchronized void execute(Collection<K> keys, Runnable task) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        List<CompletableFuture<Void>> previous = new ArrayList<>();
+        for (K key : keys) {
+            tails.compute(key, (k, tail) -> {
+                if (tail != null) {
+                    previous.add(tail);
+                }
+                return done;
+            });
+        }
+
+        CompletableFuture.allOf(previous.toArray(new CompletableFuture<?>[0]))
+                .exceptionally(error -> null)
+                .thenRunAsync(() -> {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Logger.error("Task for " + keys.size() + " keys failed: " + e.getMessage());
+                    }
+                }, executorFor(task))
+                .whenComplete((ignored, error) -> {
+                    done.complete(null);
+                    for (K key : keys) {
+                        tails.remove(key, done);
+                    }
+                });
+    }
+
+    /**
+     * CompletableFuture entrega al executor su propio Runnable; si la tarea
+     * tiene prioridad se envuelve para que el executor la siga viendo
+     */
+    private Executor executorFor(Runnable task) {
+        if (!(task instanceof PrioritizedTask prioritized)) {
+            return executor;
+        }
+        return command -> executor.execute(new PrioritizedTask() {
+            @Override
+            public void run() {
+                command.run();
+            }
+
+            @Override
+            public TransferPriority priority() {
+                return prioritized.priority();
+            }
+        });
+    }
+
+    /**
+     * Numero de claves con tareas pendientes o en curso
+     */
+    public int pendingKeys() {
+        return tails.size();
+    }
+}
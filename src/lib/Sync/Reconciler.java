@@ -0,0 +1,135 @@
+package lib.Sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import lib.Enum.LocalEvent;
+import lib.Handlers.ChunkedFileTransferHandler;
+import lib.Interfaces.FileEventListener;
+import lib.Interfaces.FileTransferHandler;
+import lib.Utils.Logger;
+
+/**
+ * Reconciliacion de arranque: compara el arbol local de syncro con el
+ * directorio de trabajo remoto y encola solo las diferencias, para subir lo
+ * que cambio mientras GitFP estaba parado.
+ * Los archivos que solo existen en remoto no se borran, ya que no se puede
+ * distinguir un borrado local de un archivo subido por otro cliente.
+ */
+public class Reconciler implements Runnable {
+
+    private final Path root;
+    private final FileTransferHandler transferHandler;
+    private final FileEventListener target;
+    private final boolean compareSizes;
+
+    /**
+     * @param compareSizes false cuando el remoto guarda un formato distinto al
+     *                     local (p.ej. cifrado) y los tamaños no son comparables
+     */
+    public Reconciler(Path root, FileTransferHandler transferHandler, FileEventListener target,
+            boolean compareSizes) {
+        this.root = root;
+        this.transferHandler = transferHandler;
+        this.target = target;
+        this.compareSizes = compareSizes;
+    }
+
+    /**
+     * Recorre un directorio local; cada subdirectorio es una subtarea
+     */
+    private class LocalScan extends RecursiveTask<Map<String, FileMetadata>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File dir;
+
+        LocalScan(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected Map<String, FileMetadata> compute() {
+            Map<String, FileMetadata> result = new HashMap<>();
+            File[] children = dir.listFiles();
+            if (children == null) {
+                return result;
+            }
+
+            List<LocalScan> subtasks = new ArrayList<>();
+            for (File child : children) {
+                String relative = root.relativize(child.toPath()).toString().replace(File.separatorChar, '/');
+                if (ChunkedFileTransferHandler.isChunkStore(relative)) {
+                    // Nombre reservado para el almacen de trozos
+                    continue;
+                }
+                if (child.isDirectory()) {
+                    LocalScan task = new LocalScan(child);
+                    task.fork();
+                    subtasks.add(task);
+                } else if (child.isFile() && !child.getName().equals(".DS_Store")) {
+                    result.put(relative, new FileMetadata(relative, child.length(), child.lastModified()));
+                }
+            }
+
+            for (LocalScan task : subtasks) {
+                result.putAll(task.join());
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        try {
+            Map<String, FileMetadata> local = ForkJoinPool.commonPool().invoke(new LocalScan(root.toFile()));
+            Map<String, FileMetadata> remote = transferHandler.listRemoteTree();
+            if (remote == null) {
+                Logger.error("Reconciliation aborted: could not read remote tree");
+                return;
+            }
+
+            int created = 0;
+            int modified = 0;
+            for (FileMetadata localFile : local.values()) {
+                FileMetadata remoteFile = remote.get(localFile.path());
+                if (remoteFile == null) {
+                    target.onFileEvent(LocalEvent.CREATE, Paths.get(localFile.path()));
+                    created++;
+                } else if (isNewer(localFile, remoteFile)) {
+                    target.onFileEvent(LocalEvent.MODIFY, Paths.get(localFile.path()));
+                    modified++;
+                }
+            }
+
+            int remoteOnly = 0;
+            for (String path : remote.keySet()) {
+                if (!local.containsKey(path)) {
+                    remoteOnly++;
+                }
+            }
+
+            Logger.info("Reconciliation finished in " + (System.currentTimeMillis() - start) + " ms: "
+                    + local.size() + " local, " + remote.size() + " remote, " + created + " to upload, "
+                    + modified + " to replace, " + remoteOnly + " only remote (kept)");
+        } catch (IOException e) {
+            Logger.error("Reconciliation failed: " + e.getMessage());
+        }
+    }
+
+    private boolean isNewer(FileMetadata local, FileMetadata remote) {
+        if (compareSizes && local.size() != remote.size()) {
+            return true;
+        }
+        return local.modified() > remote.modified();
+    }
+}
@@ -0,0 +1,212 @@
+package lib.Sync;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import lib.Utils.Logger;
+
+/**
+ * Diario local de transferencias grandes en curso, para poder reanudarlas
+ * tras un corte de conexion o un reinicio en lugar de empezar de cero.
+ *
+ * Para las subidas guarda el tamaño del origen y, cada cierto numero de
+ * bytes enviados, un punto de control con el offset y el SHA-256 de lo
+ * enviado hasta ahi. Al reanudar se comprueba que el origen sigue teniendo
+ * ese mismo prefijo antes de continuar desde el offset.
+ *
+ * Para las descargas guarda el tamaño y la fecha del archivo remoto y el
+ * destino local, que es a la vez el progreso: se continua desde su tamaño.
+ *
+ * Se guarda como un log de solo-añadir en .gitfp/transfers.journal:
+ * U (subida iniciada), C (punto de control), u (subida terminada),
+ * D (descarga iniciada) y d (descarga terminada).
+ */
+public class TransferJournal {
+
+    /**
+     * Subida en curso
+     *
+     * @param checkpoints offset -> SHA-256 del prefijo hasta ese offset
+     */
+    public record Upload(long size, NavigableMap<Long, String> checkpoints) {
+    }
+
+    /**
+     * Descarga en curso
+     */
+    public record Download(long remoteSize, String remoteModified, String localPath) {
+    }
+
+    private static final Path JOURNAL_FILE = Paths.get(".gitfp", "transfers.journal");
+    private static final int COMPACT_MIN_LINES = 200;
+
+    private static TransferJournal instance;
+
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, Download> downloads = new ConcurrentHashMap<>();
+    private BufferedWriter writer;
+
+    private TransferJournal() {
+        load();
+    }
+
+    public static synchronized TransferJournal getInstance() {
+        if (instance == null) {
+            instance = new TransferJournal();
+        }
+        return instance;
+    }
+
+    /**
+     * @return la subida en curso hacia esa ruta, o null
+     */
+    public Upload getUpload(String remotePath) {
+        return uploads.get(remotePath);
+    }
+
+    public void startUpload(String remotePath, long size) {
+        uploads.put(remotePath, new Upload(size, new ConcurrentSkipListMap<>()));
+        append("U\t" + size + "\t" + remotePath);
+    }
+
+    public void checkpoint(String remotePath, long offset, String hash) {
+        Upload upload = uploads.get(remotePath);
+        if (upload != null) {
+            upload.checkpoints().put(offset, hash);
+            append("C\t" + offset + "\t" + hash + "\t" + remotePath);
+        }
+    }
+
+    public void finishUpload(String remotePath) {
+        if (uploads.remove(remotePath) != null) {
+            append("u\t" + remotePath);
+        }
+    }
+
+    /**
+     * @return la descarga en curso desde esa ruta, o null
+     */
+    public Download getDownload(String remotePath) {
+        return downloads.get(remotePath);
+    }
+
+    public void startDownload(String remotePath, long remoteSize, String remoteModified, String localPath) {
+        downloads.put(remotePath, new Download(remoteSize, remoteModified, localPath));
+        append("D\t" + remoteSize + "\t" + remoteModified + "\t" + localPath + "\t" + remotePath);
+    }
+
+    public void finishDownload(String remotePath) {
+        if (downloads.remove(remotePath) != null) {
+            append("d\t" + remotePath);
+        }
+    }
+
+    private synchronized void append(String line) {
+        try {
+            if (writer == null) {
+                Files.createDirectories(JOURNAL_FILE.getParent());
+                writer = Files.newBufferedWriter(JOURNAL_FILE, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            Logger.error("Error writing transfer journal: " + e.getMessage());
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(JOURNAL_FILE)) {
+            return;
+        }
+
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(JOURNAL_FILE, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                String[] parts = line.split("\t");
+                try {
+                    switch (parts[0]) {
+                        case "U" -> {
+                            if (parts.length == 3) {
+                                uploads.put(parts[2], new Upload(Long.parseLong(parts[1]), new ConcurrentSkipListMap<>()));
+                            }
+                        }
+                        case "C" -> {
+                            Upload upload = parts.length == 4 ? uploads.get(parts[3]) : null;
+                            if (upload != null) {
+                                upload.checkpoints().put(Long.parseLong(parts[1]), parts[2]);
+                            }
+                        }
+                        case "u" -> uploads.remove(parts[1]);
+                        case "D" -> {
+                            if (parts.length == 5) {
+                                downloads.put(parts[4], new Download(Long.parseLong(parts[1]), parts[2], parts[3]));
+                            }
+                        }
+                        case "d" -> downloads.remove(parts[1]);
+                        default -> {
+                        }
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    // Linea truncada por un cierre abrupto, se descarta
+                }
+            }
+        } catch (IOException e) {
+            Logger.error("Error reading transfer journal: " + e.getMessage());
+            return;
+        }
+
+        if (!uploads.isEmpty() || !downloads.isEmpty()) {
+            Logger.info("Transfer journal: " + uploads.size() + " uploads and " + downloads.size()
+                    + " downloads can be resumed");
+        }
+        if (lines > COMPACT_MIN_LINES) {
+            compact();
+        }
+    }
+
+    /**
+     * Reescribe el diario solo con las transferencias pendientes
+     */
+    private synchronized void compact() {
+        Path temp = JOURNAL_FILE.resolveSibling("transfers.journal.tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Upload> e : uploads.entrySet()) {
+                out.write("U\t" + e.getValue().size() + "\t" + e.getKey());
+                out.newLine();
+                for (Map.Entry<Long, String> c : e.getValue().checkpoints().entrySet()) {
+                    out.write("C\t" + c.getKey() + "\t" + c.getValue() + "\t" + e.getKey());
+                    out.newLine();
+                }
+            }
+            for (Map.Entry<String, Download> e : downloads.entrySet()) {
+                Download d = e.getValue();
+                out.write("D\t" + d.remoteSize() + "\t" + d.remoteModified() + "\t" + d.localPath() + "\t" + e.getKey());
+                out.newLine();
+            }
+        } catch (IOException e) {
+            Logger.error("Error compacting transfer journal: " + e.getMessage());
+            return;
+        }
+
+        try {
+            Files.move(temp, JOURNAL_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Logger.error("Error replacing transfer journal: " + e.getMessage());
+        }
+    }
+}